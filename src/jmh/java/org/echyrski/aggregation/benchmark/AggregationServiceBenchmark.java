@@ -0,0 +1,105 @@
+package org.echyrski.aggregation.benchmark;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.echyrski.aggregation.config.AggregationProperties;
+import org.echyrski.aggregation.service.AggregationService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Whole submission path of one API against the in-process {@link StubBackend}: ingestion, single-flight, batching,
+ * URI join, WebClient decoding and the fan-out of the answer to the collectors. Caching is disabled and every
+ * operation asks for keys nobody asked for before, so each operation pays for a downstream lookup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AggregationServiceBenchmark {
+
+    private static final Duration AWAIT = Duration.ofSeconds(10);
+
+    @Param({"1", "5", "20"})
+    public int keyCount;
+
+    private StubBackend backend;
+    private AggregationService aggregationService;
+    private final LongAdder operations = new LongAdder();
+
+    @State(Scope.Thread)
+    public static class Keys {
+        private String prefix;
+        private long next;
+
+        @Setup
+        public void setUp(ThreadParams threadParams) {
+            prefix = "T" + threadParams.getThreadIndex() + "-";
+        }
+
+        List<String> next(int count) {
+            List<String> keys = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                keys.add(prefix + next++);
+            }
+            return keys;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        AggregationProperties properties = new AggregationProperties();
+        // Caching is disabled by the default cache settings
+        properties.getApis().put("pricing", new AggregationProperties.Api("/pricing?q={queries}", "java.lang.Double",
+                new AggregationProperties.Cache()));
+        properties.getApis().put("shipments", new AggregationProperties.Api("/shipments?q={queries}", "java.util.List<java.lang.String>",
+                new AggregationProperties.Cache()));
+        StubBackend.verify();
+        backend = new StubBackend();
+        aggregationService = new AggregationService(backend.webClientBuilder(), "http://backend", properties, new ObjectMapper(), new SimpleMeterRegistry());
+        aggregationService.init();
+    }
+
+    @TearDown
+    public void tearDown() {
+        aggregationService.dispose();
+        if (operations.sum() > 0) {
+            System.out.printf("%nbackend calls per operation: %.3f%n", (double) backend.calls() / operations.sum());
+        }
+    }
+
+    @Benchmark
+    public Map<String, Optional<Object>> submitPricingRequest(Keys keys) {
+        operations.increment();
+        return aggregationService.submitRequest("pricing", keys.next(keyCount)).block(AWAIT);
+    }
+
+    @Benchmark
+    public Map<String, Optional<Object>> submitShipmentRequest(Keys keys) {
+        operations.increment();
+        return aggregationService.submitRequest("shipments", keys.next(keyCount)).block(AWAIT);
+    }
+}
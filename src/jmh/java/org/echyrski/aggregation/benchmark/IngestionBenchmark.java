@@ -0,0 +1,104 @@
+package org.echyrski.aggregation.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.echyrski.aggregation.service.IngestionQueue;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Contention of the key submission path: the former ReentrantLock guarded multicast sink against the lock-free
+ * {@link IngestionQueue}. Every benchmark thread plays an event-loop thread submitting keys.
+ * <p>
+ * A key rejected by a full queue is cheap, so compare the {@code accepted} counter rather than the raw score once
+ * producers outrun the consumer. Sweep the thread count with {@link ThreadSweep}:
+ * mvn -Pjmh test-compile exec:exec -Djmh.main=org.echyrski.aggregation.benchmark.ThreadSweep -Djmh.args="IngestionBenchmark 1 2 4 8"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IngestionBenchmark {
+
+    private static final String[] KEYS = {"NL", "UK", "US", "BA", "BB", "DE", "FR", "ES"};
+
+    @Param({"lock-sink", "mpsc-queue"})
+    public String ingestion;
+
+    private final AtomicLong consumed = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock();
+    private Sinks.Many<String> sink;
+    private Disposable subscription;
+    private Scheduler scheduler;
+    private IngestionQueue<String> queue;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Submissions {
+        public long accepted;
+        public long rejected;
+        private int next;
+
+        String nextKey() {
+            next = (next + 1) & (KEYS.length - 1);
+            return KEYS[next];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sink = Sinks.many().multicast().onBackpressureBuffer();
+        subscription = sink.asFlux().subscribe(key -> consumed.incrementAndGet());
+        scheduler = Schedulers.newSingle("ingestion-benchmark");
+        queue = new IngestionQueue<>(1_000_000, key -> consumed.incrementAndGet(), scheduler);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        subscription.dispose();
+        scheduler.dispose();
+    }
+
+    @Benchmark
+    public boolean submit(Submissions submissions) {
+        String key = submissions.nextKey();
+        boolean accepted;
+        if ("lock-sink".equals(ingestion)) {
+            lock.lock();
+            try {
+                accepted = sink.tryEmitNext(key) == Sinks.EmitResult.OK;
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            accepted = queue.offer(key);
+        }
+        if (accepted) {
+            submissions.accepted++;
+        } else {
+            submissions.rejected++;
+        }
+        return accepted;
+    }
+}
@@ -0,0 +1,57 @@
+package org.echyrski.aggregation.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.echyrski.aggregation.service.ResponseCollector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of collecting the answers of one request: every key is submitted to a fresh collector and the result is
+ * awaited, the way each /aggregation call does it once per API.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseCollectorBenchmark {
+
+    @Param({"1", "5", "20"})
+    public int keyCount;
+
+    private List<String> keys;
+    private Double value;
+
+    @Setup
+    public void setUp() {
+        keys = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add("K" + i);
+        }
+        value = 14.24;
+    }
+
+    @Benchmark
+    public Map<String, Optional<Double>> submitAndCollect() {
+        ResponseCollector<Double> collector = new ResponseCollector<>(keys);
+        for (int i = 0; i < keyCount; i++) {
+            collector.submit(keys.get(i), value);
+        }
+        return collector.asMono().block();
+    }
+}
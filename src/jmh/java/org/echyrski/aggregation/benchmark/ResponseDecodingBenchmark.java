@@ -0,0 +1,103 @@
+package org.echyrski.aggregation.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.echyrski.aggregation.service.BatchResponseDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import reactor.core.publisher.Flux;
+
+/**
+ * Decoding one shipments batch response delivered in 8 KiB buffers: the former {@code bodyToMono(Map)} path that
+ * decodes the whole body into a map and looks every requested key up, against the field by field
+ * {@link BatchResponseDecoder}. {@code streamingFirstField} is the time until the first key can be answered.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseDecodingBenchmark {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final ResolvableType MAP_TYPE = ResolvableType.forType(new TypeReference<Map<String, List<String>>>() {
+    }.getType());
+
+    @Param({"10", "100", "1000"})
+    public int keyCount;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Jackson2JsonDecoder mapDecoder = new Jackson2JsonDecoder(objectMapper);
+    private final BatchResponseDecoder<List<String>> streamingDecoder = new BatchResponseDecoder<>(objectMapper,
+            objectMapper.constructType(new TypeReference<List<String>>() {
+            }));
+    private List<String> keys;
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        keys = new ArrayList<>(keyCount);
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < keyCount; i++) {
+            String key = String.valueOf(100_000_000 + i);
+            keys.add(key);
+            json.append(i == 0 ? "" : ",").append('"').append(key).append("\":[\"box\",\"box\",\"pallet\",\"envelope\"]");
+        }
+        body = json.append('}').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public int mapThenLookup() {
+        Map<String, List<String>> response = (Map<String, List<String>>) mapDecoder
+                .decodeToMono(buffers(), MAP_TYPE, MediaType.APPLICATION_JSON, Map.of())
+                .block();
+        int answered = 0;
+        for (String key : keys) {
+            if (response.get(key) != null) {
+                answered++;
+            }
+        }
+        return answered;
+    }
+
+    @Benchmark
+    public long streaming() {
+        return streamingDecoder.decode(buffers()).count().block();
+    }
+
+    @Benchmark
+    public Map.Entry<String, List<String>> streamingFirstField() {
+        return streamingDecoder.decode(buffers()).blockFirst();
+    }
+
+    private Flux<DataBuffer> buffers() {
+        return Flux.range(0, (body.length + BUFFER_SIZE - 1) / BUFFER_SIZE)
+                .map(chunk -> DefaultDataBufferFactory.sharedInstance.wrap(
+                        Arrays.copyOfRange(body, chunk * BUFFER_SIZE, Math.min(body.length, (chunk + 1) * BUFFER_SIZE))));
+    }
+}
@@ -0,0 +1,97 @@
+package org.echyrski.aggregation.benchmark;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.echyrski.aggregation.controller.AggregationResponseEncoder;
+import org.echyrski.aggregation.model.AggregationResponse;
+import org.echyrski.aggregation.service.ResponseCollector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * Writing one /aggregation response into a pooled Netty buffer: the default Jackson encoder, which serializes the
+ * record and its {@code Optional} values reflectively, against {@link AggregationResponseEncoder}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseEncodingBenchmark {
+
+    private static final ResolvableType TYPE = ResolvableType.forClass(AggregationResponse.class);
+
+    @Param({"5", "20"})
+    public int keyCount;
+
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+    private final NettyDataBufferFactory bufferFactory = new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+    private final Jackson2JsonEncoder jacksonEncoder = new Jackson2JsonEncoder(objectMapper);
+    private final AggregationResponseEncoder aggregationEncoder = new AggregationResponseEncoder(objectMapper);
+    private AggregationResponse response;
+
+    @Setup
+    public void setUp() {
+        List<String> keys = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(String.valueOf(100_000_000 + i));
+        }
+        ResponseCollector<Object> pricing = new ResponseCollector<>(keys);
+        ResponseCollector<Object> track = new ResponseCollector<>(keys);
+        ResponseCollector<Object> shipments = new ResponseCollector<>(keys);
+        for (int i = 0; i < keyCount; i++) {
+            // Every fifth key has no answer
+            boolean answered = i % 5 != 0;
+            pricing.submit(keys.get(i), answered ? 14.24 : null);
+            track.submit(keys.get(i), answered ? "DELIVERING" : null);
+            shipments.submit(keys.get(i), answered ? List.of("box", "pallet") : null);
+        }
+        Map<String, Map<String, Optional<Object>>> apis = new LinkedHashMap<>();
+        apis.put("pricing", pricing.asMono().block());
+        apis.put("track", track.asMono().block());
+        apis.put("shipments", shipments.asMono().block());
+        response = new AggregationResponse(apis);
+    }
+
+    @Benchmark
+    public int jackson() {
+        return release(jacksonEncoder.encodeValue(response, bufferFactory, TYPE, MediaType.APPLICATION_JSON, Map.of()));
+    }
+
+    @Benchmark
+    public int aggregationEncoder() {
+        return release(aggregationEncoder.encodeValue(response, bufferFactory, TYPE, MediaType.APPLICATION_JSON, Map.of()));
+    }
+
+    private static int release(DataBuffer buffer) {
+        int size = buffer.readableByteCount();
+        DataBufferUtils.release(buffer);
+        return size;
+    }
+}
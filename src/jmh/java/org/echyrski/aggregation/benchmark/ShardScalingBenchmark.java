@@ -0,0 +1,94 @@
+package org.echyrski.aggregation.benchmark;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.echyrski.aggregation.config.AggregationProperties;
+import org.echyrski.aggregation.service.AggregationService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Submission throughput of one API against the in-process {@link StubBackend} by number of key shards, {@code 0}
+ * being one per available processor. Batches of a single shard are assembled one after another, so the score of
+ * more shards should grow with the thread count up to the number of cores. Sweep the thread count with
+ * {@link ThreadSweep}:
+ * mvn -Pjmh test-compile exec:exec -Djmh.main=org.echyrski.aggregation.benchmark.ThreadSweep -Djmh.args="ShardScalingBenchmark 1 2 4 8"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShardScalingBenchmark {
+
+    private static final Duration AWAIT = Duration.ofSeconds(10);
+    private static final int KEY_COUNT = 20;
+
+    @Param({"1", "0"})
+    public int shards;
+
+    private AggregationService aggregationService;
+
+    @State(Scope.Thread)
+    public static class Keys {
+        private String prefix;
+        private long next;
+
+        @Setup
+        public void setUp(ThreadParams threadParams) {
+            prefix = "T" + threadParams.getThreadIndex() + "-";
+        }
+
+        List<String> next(int count) {
+            List<String> keys = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                keys.add(prefix + next++);
+            }
+            return keys;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        AggregationProperties properties = new AggregationProperties();
+        // Caching is disabled by the default cache settings
+        AggregationProperties.Api pricing = new AggregationProperties.Api("/pricing?q={queries}", "java.lang.Double",
+                new AggregationProperties.Cache());
+        pricing.setShards(shards);
+        properties.getApis().put("pricing", pricing);
+        StubBackend.verify();
+        aggregationService = new AggregationService(new StubBackend().webClientBuilder(), "http://backend", properties, new ObjectMapper(), new SimpleMeterRegistry());
+        aggregationService.init();
+    }
+
+    @TearDown
+    public void tearDown() {
+        aggregationService.dispose();
+    }
+
+    @Benchmark
+    public Map<String, Optional<Object>> submitRequest(Keys keys) {
+        return aggregationService.submitRequest("pricing", keys.next(KEY_COUNT)).block(AWAIT);
+    }
+}
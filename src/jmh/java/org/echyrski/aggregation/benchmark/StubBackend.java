@@ -0,0 +1,83 @@
+package org.echyrski.aggregation.benchmark;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
+
+import reactor.core.publisher.Mono;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * In-process backend answering every key of a {@code ?q=} batch, so benchmarks exercise the whole WebClient
+ * decoding path without a network. Pricing is answered with numbers, track with a status and shipments with a list.
+ */
+public class StubBackend implements ExchangeFunction {
+
+    private final AtomicLong calls = new AtomicLong();
+
+    public WebClient.Builder webClientBuilder() {
+        return WebClient.builder().exchangeFunction(this);
+    }
+
+    public long calls() {
+        return calls.get();
+    }
+
+    /**
+     * Fails unless a batch of several keys sent through WebClient is answered key by key, so that a benchmark cannot
+     * silently measure the not found path.
+     */
+    public static void verify() {
+        Map<?, ?> answers = new StubBackend().webClientBuilder().build().get()
+                .uri("http://backend/pricing?q={queries}", "NL,UK")
+                .retrieve()
+                .bodyToMono(Map.class)
+                .block(Duration.ofSeconds(10));
+        if (answers == null || !answers.containsKey("NL") || !answers.containsKey("UK")) {
+            throw new IllegalStateException("Stub backend answered a batch of NL,UK with " + answers);
+        }
+    }
+
+    @Override
+    public Mono<ClientResponse> exchange(ClientRequest request) {
+        calls.incrementAndGet();
+        String path = request.url().getPath();
+        // The query is taken raw, WebClient sends the separating commas encoded
+        String queries = UriComponentsBuilder.fromUri(request.url()).build().getQueryParams().getFirst("q");
+        StringBuilder body = new StringBuilder("{");
+        if (queries != null) {
+            for (String key : UriUtils.decode(queries, UTF_8).split(",")) {
+                if (body.length() > 1) {
+                    body.append(',');
+                }
+                body.append('"').append(key).append("\":").append(value(path));
+            }
+        }
+        body.append('}');
+        return Mono.just(ClientResponse.create(HttpStatus.OK)
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .body(body.toString())
+                .build());
+    }
+
+    private static String value(String path) {
+        if (path.endsWith("/pricing")) {
+            return "14.24";
+        }
+        if (path.endsWith("/track")) {
+            return "\"DELIVERING\"";
+        }
+        return "[\"box\",\"pallet\"]";
+    }
+}
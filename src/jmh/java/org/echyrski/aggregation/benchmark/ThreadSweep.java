@@ -0,0 +1,57 @@
+package org.echyrski.aggregation.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks matching a pattern once per thread count with the GC profiler attached and prints
+ * throughput and allocated bytes per operation side by side:
+ * mvn -Pjmh test-compile exec:exec -Djmh.main=org.echyrski.aggregation.benchmark.ThreadSweep -Djmh.args="AggregationServiceBenchmark 1 2 4 8"
+ */
+public class ThreadSweep {
+
+    public static void main(String[] args) throws RunnerException {
+        if (args.length == 0) {
+            System.err.println("Usage: ThreadSweep <benchmark pattern> [thread count...]");
+            return;
+        }
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            threadCounts.add(Integer.parseInt(args[i]));
+        }
+        if (threadCounts.isEmpty()) {
+            threadCounts = List.of(1, 2, 4, 8);
+        }
+        List<String> lines = new ArrayList<>();
+        for (int threads : threadCounts) {
+            for (RunResult result : new Runner(new OptionsBuilder()
+                    .include(args[0])
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .build()).run()) {
+                Result<?> allocated = result.getSecondaryResults().get("gc.alloc.rate.norm");
+                lines.add(String.format("%-60s %-30s %8d %14.3f %-8s %12.0f",
+                        result.getParams().getBenchmark(), params(result), threads,
+                        result.getPrimaryResult().getScore(), result.getPrimaryResult().getScoreUnit(),
+                        allocated == null ? Double.NaN : allocated.getScore()));
+            }
+        }
+        System.out.printf("%n%-60s %-30s %8s %14s %-8s %12s%n", "benchmark", "params", "threads", "score", "unit", "B/op");
+        lines.forEach(System.out::println);
+    }
+
+    private static String params(RunResult result) {
+        StringBuilder params = new StringBuilder();
+        for (String key : result.getParams().getParamsKeys()) {
+            params.append(key).append('=').append(result.getParams().getParam(key)).append(' ');
+        }
+        return params.toString().trim();
+    }
+}
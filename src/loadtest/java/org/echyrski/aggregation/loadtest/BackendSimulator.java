@@ -0,0 +1,81 @@
+package org.echyrski.aggregation.loadtest;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.reactivestreams.Publisher;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+
+/**
+ * Local stand-in for the backend services on a random port: {@code /pricing}, {@code /track} and {@code /shipments}
+ * answer every key of a {@code ?q=} batch after a latency drawn from the configured distribution, or fail with a 503
+ * at the configured error rate. Calls are counted per API.
+ */
+public class BackendSimulator implements AutoCloseable {
+
+    private final Latency latency;
+    private final double errorRate;
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+    private final DisposableServer server;
+
+    public BackendSimulator(Latency latency, double errorRate) {
+        this.latency = latency;
+        this.errorRate = errorRate;
+        this.server = HttpServer.create()
+                .host("127.0.0.1")
+                .port(0)
+                .route(routes -> routes
+                        .get("/pricing", (request, response) -> answer("pricing", "14.24", request, response))
+                        .get("/track", (request, response) -> answer("track", "\"DELIVERING\"", request, response))
+                        .get("/shipments", (request, response) -> answer("shipments", "[\"box\",\"pallet\"]", request, response)))
+                .bindNow();
+    }
+
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.port();
+    }
+
+    public long calls(String api) {
+        LongAdder counter = calls.get(api);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    @Override
+    public void close() {
+        server.disposeNow();
+    }
+
+    private Publisher<Void> answer(String api, String value, HttpServerRequest request, HttpServerResponse response) {
+        calls.computeIfAbsent(api, name -> new LongAdder()).increment();
+        Mono<Void> delay = Mono.delay(latency.next()).then();
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            return delay.then(response.status(HttpResponseStatus.SERVICE_UNAVAILABLE).send());
+        }
+        List<String> queries = new QueryStringDecoder(request.uri()).parameters().getOrDefault("q", List.of());
+        StringBuilder body = new StringBuilder("{");
+        for (String query : queries) {
+            for (String key : query.split(",")) {
+                if (body.length() > 1) {
+                    body.append(',');
+                }
+                body.append('"').append(key).append("\":").append(value);
+            }
+        }
+        body.append('}');
+        return delay.then(response
+                .header(HttpHeaderNames.CONTENT_TYPE, "application/json")
+                .sendString(Mono.just(body.toString()))
+                .then());
+    }
+}
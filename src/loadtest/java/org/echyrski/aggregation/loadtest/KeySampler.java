@@ -0,0 +1,30 @@
+package org.echyrski.aggregation.loadtest;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Draws keys from {@code 0} to {@code keys - 1} with Zipf skew: key {@code k} is drawn with a weight of
+ * {@code 1 / (k + 1)^exponent}, so an exponent of 0 draws uniformly and 1 makes a few keys hot.
+ */
+public final class KeySampler {
+
+    private final double[] cumulative;
+
+    public KeySampler(int keys, double exponent) {
+        this.cumulative = new double[keys];
+        double total = 0;
+        for (int k = 0; k < keys; k++) {
+            total += 1 / Math.pow(k + 1, exponent);
+            cumulative[k] = total;
+        }
+        for (int k = 0; k < keys; k++) {
+            cumulative[k] /= total;
+        }
+    }
+
+    public int next() {
+        int index = Arrays.binarySearch(cumulative, ThreadLocalRandom.current().nextDouble());
+        return Math.min(index < 0 ? -index - 1 : index, cumulative.length - 1);
+    }
+}
@@ -0,0 +1,70 @@
+package org.echyrski.aggregation.loadtest;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+import org.springframework.boot.convert.DurationStyle;
+
+/**
+ * Latency distribution of the simulated backend, parsed from a spec:
+ * <ul>
+ *     <li>{@code fixed:5ms}</li>
+ *     <li>{@code uniform:1ms:20ms}</li>
+ *     <li>{@code lognormal:5ms:0.5}, median and sigma of the underlying normal distribution</li>
+ *     <li>{@code bimodal:5ms:500ms:0.01}, fast and slow latency and the share of slow calls</li>
+ * </ul>
+ */
+public final class Latency {
+
+    private final String spec;
+    private final Supplier<Duration> sampler;
+
+    private Latency(String spec, Supplier<Duration> sampler) {
+        this.spec = spec;
+        this.sampler = sampler;
+    }
+
+    public static Latency parse(String spec) {
+        String[] parts = spec.split(":");
+        switch (parts[0]) {
+            case "fixed" -> {
+                Duration latency = duration(parts, 1);
+                return new Latency(spec, () -> latency);
+            }
+            case "uniform" -> {
+                long min = duration(parts, 1).toNanos();
+                long max = duration(parts, 2).toNanos();
+                return new Latency(spec, () -> Duration.ofNanos(ThreadLocalRandom.current().nextLong(min, max + 1)));
+            }
+            case "lognormal" -> {
+                long median = duration(parts, 1).toNanos();
+                double sigma = Double.parseDouble(parts[2]);
+                return new Latency(spec, () -> Duration.ofNanos((long) (median * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()))));
+            }
+            case "bimodal" -> {
+                Duration fast = duration(parts, 1);
+                Duration slow = duration(parts, 2);
+                double slowShare = Double.parseDouble(parts[3]);
+                return new Latency(spec, () -> ThreadLocalRandom.current().nextDouble() < slowShare ? slow : fast);
+            }
+            default -> throw new IllegalArgumentException("Unknown latency distribution " + spec);
+        }
+    }
+
+    public Duration next() {
+        return sampler.get();
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+    private static Duration duration(String[] parts, int index) {
+        if (parts.length <= index) {
+            throw new IllegalArgumentException("Missing parameter " + index + " of latency distribution " + String.join(":", parts));
+        }
+        return DurationStyle.detectAndParse(parts[index]);
+    }
+}
@@ -0,0 +1,102 @@
+package org.echyrski.aggregation.loadtest;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+/**
+ * Open-model load: requests are sent at a constant arrival rate whether or not earlier ones have been answered,
+ * the way independent clients behave. Latency is measured from the time a request was due to be sent rather than
+ * from when it actually went out, so a stalled sender does not hide the stall (coordinated omission).
+ */
+public class LoadGenerator implements AutoCloseable {
+
+    private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(30);
+
+    private final ConnectionProvider connections = ConnectionProvider.builder("load-generator")
+            .maxConnections(10_000)
+            .pendingAcquireMaxCount(-1)
+            .build();
+    private final HttpClient client;
+    private final Supplier<String> uris;
+
+    /**
+     * @param baseUrl host of the service under test
+     * @param uris    path and query of the next request
+     */
+    public LoadGenerator(String baseUrl, Supplier<String> uris) {
+        this.client = HttpClient.create(connections).baseUrl(baseUrl);
+        this.uris = uris;
+    }
+
+    public Result run(double rate, Duration duration) throws InterruptedException {
+        long intervalNanos = (long) (1e9 / rate);
+        long total = (long) (rate * duration.toNanos() / 1e9);
+        Recorder latencies = new Recorder(3);
+        LongAdder completed = new LongAdder();
+        LongAdder errors = new LongAdder();
+        AtomicLong sent = new AtomicLong();
+        AtomicLong lastCompletedAt = new AtomicLong();
+        long startedAt = System.nanoTime();
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "load-ticker"));
+        try {
+            // Every tick sends the requests that have fallen due since the previous one
+            ticker.scheduleAtFixedRate(() -> {
+                long now = System.nanoTime();
+                while (sent.get() < total && startedAt + sent.get() * intervalNanos <= now) {
+                    long dueAt = startedAt + sent.getAndIncrement() * intervalNanos;
+                    client.get()
+                            .uri(uris.get())
+                            .responseSingle((response, body) -> body.then().thenReturn(response.status().code()))
+                            .subscribe(status -> {
+                                long completedAt = System.nanoTime();
+                                lastCompletedAt.accumulateAndGet(completedAt, Math::max);
+                                if (status == 200) {
+                                    latencies.recordValue(completedAt - dueAt);
+                                    completed.increment();
+                                } else {
+                                    errors.increment();
+                                }
+                            }, error -> errors.increment());
+                }
+            }, 0, 1, TimeUnit.MILLISECONDS);
+            long deadline = startedAt + duration.toNanos() + DRAIN_TIMEOUT.toNanos();
+            while (completed.sum() + errors.sum() < total && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            ticker.shutdownNow();
+        }
+        long elapsedNanos = Math.max(lastCompletedAt.get(), startedAt + duration.toNanos()) - startedAt;
+        return new Result(sent.get(), completed.sum(), errors.sum(), elapsedNanos, latencies.getIntervalHistogram());
+    }
+
+    @Override
+    public void close() {
+        connections.disposeLater().block(DRAIN_TIMEOUT);
+    }
+
+    /**
+     * @param latencies latency of the successful requests in nanoseconds
+     */
+    public record Result(long sent, long completed, long errors, long elapsedNanos, Histogram latencies) {
+
+        public double throughput() {
+            return completed / (elapsedNanos / 1e9);
+        }
+
+        public double latencyMillis(double percentile) {
+            return latencies.getValueAtPercentile(percentile) / 1e6;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.echyrski.aggregation.loadtest;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.echyrski.aggregation.Application;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Runs the aggregation service against a {@link BackendSimulator} in one JVM, drives {@code /aggregation} with a
+ * {@link LoadGenerator} and prints latency percentiles, throughput and downstream call amplification, the backend
+ * calls per client request. Needs no network or containers, so runs are reproducible and comparable.
+ * <p>
+ * Options are given as {@code --name=value}, any other {@code --} argument is passed to the service, e.g.
+ * {@code --aggregation.apis.pricing.cache.ttl=0}:
+ * <pre>
+ * --rate=200                   requests per second
+ * --duration=30s               measured run
+ * --warmup=10s                 run at the same rate before measuring
+ * --apis=pricing,track,shipments  APIs every request asks for
+ * --keys-per-request=1         keys per API in every request
+ * --keys=10000                 size of the key space
+ * --skew=1.0                   Zipf exponent of the key choice, 0 for uniform
+ * --backend-latency=lognormal:5ms:0.5  see {@link Latency}
+ * --backend-error-rate=0       share of backend calls failing with a 503
+ * --histogram=target/load.hgrm write the latency distribution in HdrHistogram's percentile format
+ * </pre>
+ * mvn -Ploadtest test-compile exec:exec -Dloadtest.args="--rate=500 --skew=0"
+ */
+public class LoadHarness {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new TreeMap<>(Map.of(
+                "rate", "200",
+                "duration", "30s",
+                "warmup", "10s",
+                "apis", "pricing,track,shipments",
+                "keys-per-request", "1",
+                "keys", "10000",
+                "skew", "1.0",
+                "backend-latency", "lognormal:5ms:0.5",
+                "backend-error-rate", "0"));
+        List<String> serviceArgs = new ArrayList<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            String name = arg.startsWith("--") && separator > 2 ? arg.substring(2, separator) : null;
+            if (name != null && (options.containsKey(name) || name.equals("histogram"))) {
+                options.put(name, arg.substring(separator + 1));
+            } else {
+                serviceArgs.add(arg);
+            }
+        }
+        double rate = Double.parseDouble(options.get("rate"));
+        Duration duration = DurationStyle.detectAndParse(options.get("duration"));
+        Duration warmup = DurationStyle.detectAndParse(options.get("warmup"));
+        List<String> apis = List.of(options.get("apis").split(","));
+        int keysPerRequest = Integer.parseInt(options.get("keys-per-request"));
+        KeySampler keys = new KeySampler(Integer.parseInt(options.get("keys")), Double.parseDouble(options.get("skew")));
+
+        try (BackendSimulator backend = new BackendSimulator(Latency.parse(options.get("backend-latency")),
+                Double.parseDouble(options.get("backend-error-rate")));
+             ConfigurableApplicationContext service = new SpringApplicationBuilder(Application.class)
+                     .properties("server.port=0", "SERVICES_HOST=" + backend.baseUrl(), "logging.level.root=warn")
+                     .run(serviceArgs.toArray(String[]::new));
+             LoadGenerator load = new LoadGenerator("http://127.0.0.1:" + service.getEnvironment().getProperty("local.server.port"),
+                     () -> uri(apis, keysPerRequest, keys))) {
+            if (!warmup.isZero()) {
+                load.run(rate, warmup);
+            }
+            Map<String, Long> callsBefore = new HashMap<>();
+            apis.forEach(api -> callsBefore.put(api, backend.calls(api)));
+            LoadGenerator.Result result = load.run(rate, duration);
+
+            System.out.printf("%nOptions: %s%n", options);
+            System.out.printf("Requests: %d sent, %d completed, %d failed, %.1f per second%n",
+                    result.sent(), result.completed(), result.errors(), result.throughput());
+            System.out.printf("Latency ms: p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+                    result.latencyMillis(50), result.latencyMillis(90), result.latencyMillis(99), result.latencyMillis(99.9),
+                    result.latencies().getMaxValue() / 1e6);
+            StringBuilder amplification = new StringBuilder("Backend calls per request:");
+            long totalCalls = 0;
+            for (String api : apis) {
+                long calls = backend.calls(api) - callsBefore.get(api);
+                totalCalls += calls;
+                amplification.append(String.format("  %s %.3f", api, (double) calls / Math.max(1, result.sent())));
+            }
+            System.out.printf("%s  total %.3f%n", amplification, (double) totalCalls / Math.max(1, result.sent()));
+            if (options.containsKey("histogram")) {
+                writeHistogram(result, options.get("histogram"));
+            }
+        }
+    }
+
+    private static String uri(List<String> apis, int keysPerRequest, KeySampler keys) {
+        StringBuilder uri = new StringBuilder("/aggregation?");
+        for (String api : apis) {
+            if (uri.charAt(uri.length() - 1) != '?') {
+                uri.append('&');
+            }
+            uri.append(api).append('=');
+            for (int i = 0; i < keysPerRequest; i++) {
+                if (i > 0) {
+                    uri.append(',');
+                }
+                uri.append(keys.next());
+            }
+        }
+        return uri.toString();
+    }
+
+    private static void writeHistogram(LoadGenerator.Result result, String path) throws IOException {
+        try (PrintStream out = new PrintStream(new FileOutputStream(path))) {
+            // Scaled to milliseconds
+            result.latencies().outputPercentileDistribution(out, 1e6);
+        }
+    }
+}
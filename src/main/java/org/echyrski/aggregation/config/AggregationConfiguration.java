@@ -2,23 +2,73 @@ package org.echyrski.aggregation.config;
 
 import org.echyrski.aggregation.service.AggregationService;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.ImportRuntimeHints;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.web.reactive.function.client.WebClient;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.ChannelOption;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
 @Configuration
+@EnableConfigurationProperties(AggregationProperties.class)
+@ImportRuntimeHints(AggregationRuntimeHints.class)
 public class AggregationConfiguration {
 
     @Value("${SERVICES_HOST:http://localhost:8080}")
     private String serviceHost;
 
+    @Bean(destroyMethod = "dispose")
+    public ConnectionProvider backendConnectionProvider(AggregationProperties properties) {
+        AggregationProperties.Client client = properties.getClient();
+        ConnectionProvider.Builder builder = ConnectionProvider.builder("aggregation-backend")
+                .maxConnections(client.getMaxConnections())
+                .pendingAcquireMaxCount(client.getPendingAcquireMaxCount())
+                .pendingAcquireTimeout(client.getPendingAcquireTimeout())
+                .maxIdleTime(client.getMaxIdleTime())
+                .maxLifeTime(client.getMaxLifeTime())
+                .metrics(client.isMetrics());
+        if (!client.getEvictionInterval().isZero()) {
+            builder.evictInBackground(client.getEvictionInterval());
+        }
+        return builder.build();
+    }
+
+    @Bean
+    public WebClient.Builder webClientBuilder(ConnectionProvider backendConnectionProvider, AggregationProperties properties) {
+        AggregationProperties.Client client = properties.getClient();
+        HttpClient httpClient = HttpClient.create(backendConnectionProvider)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) client.getConnectTimeout().toMillis())
+                .option(ChannelOption.SO_KEEPALIVE, client.isTcpKeepAlive())
+                .option(ChannelOption.TCP_NODELAY, client.isTcpNoDelay())
+                .keepAlive(client.isKeepAlive())
+                .compress(client.isCompression())
+                // Batch calls differ only in their query, tagging by path keeps the meter count bounded
+                .metrics(client.isMetrics(), uri -> uri.indexOf('?') < 0 ? uri : uri.substring(0, uri.indexOf('?')));
+        if (client.isHttp2()) {
+            httpClient = httpClient.protocol(HttpProtocol.H2C, HttpProtocol.HTTP11);
+        }
+        return WebClient.builder().clientConnector(new ReactorClientHttpConnector(httpClient));
+    }
+
     @Bean
-    public WebClient.Builder webClientBuilder() {
-        return WebClient.builder();
+    public AggregationService aggregationService(WebClient.Builder webClientBuilder, AggregationProperties properties, ObjectMapper objectMapper,
+                                                 MeterRegistry meterRegistry) {
+        return new AggregationService(webClientBuilder, serviceHost, properties, objectMapper, meterRegistry);
     }
 
     @Bean
-    public AggregationService aggregationService() {
-        return new AggregationService(webClientBuilder(), serviceHost);
+    @ConditionalOnProperty(prefix = "aggregation.warmup", name = "enabled", havingValue = "true")
+    public AggregationWarmup aggregationWarmup(AggregationService aggregationService, WebClient.Builder webClientBuilder,
+                                               AggregationProperties properties, ObjectMapper objectMapper) {
+        return new AggregationWarmup(aggregationService, webClientBuilder, serviceHost, properties, objectMapper);
     }
 }
@@ -0,0 +1,958 @@
+package org.echyrski.aggregation.config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.echyrski.aggregation.service.Priority;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "aggregation")
+public class AggregationProperties {
+
+    /**
+     * Backend APIs by the name clients ask for them with, in the order they are written in responses.
+     */
+    private Map<String, Api> apis = new LinkedHashMap<>();
+    /**
+     * Time an aggregation request may take, keys not answered by then are returned empty.
+     */
+    private Duration deadline = Duration.ofSeconds(5);
+    /**
+     * Upper bound of the deadline a client may ask for with the X-Aggregation-Deadline header.
+     */
+    private Duration maxDeadline = Duration.ofSeconds(30);
+    /**
+     * Fill ratio of an ingestion queue from which requests needing that API are rejected with 503.
+     */
+    private double shedThreshold = 0.9;
+    /**
+     * Most queries a {@code POST /aggregation/batch} request may hold, larger ones are rejected with 400.
+     */
+    private int maxBatchQueries = 500;
+    /**
+     * Most keys a {@code POST /aggregation/batch} request may ask for over all of its queries, larger ones are
+     * rejected with 400 before they can fill the ingestion queues.
+     */
+    private int maxBatchKeys = 5_000;
+    /**
+     * Add a Server-Timing header to aggregation responses, with the wait, downstream and total time of every API.
+     */
+    private boolean serverTiming = false;
+    private Client client = new Client();
+    private Cluster cluster = new Cluster();
+    private Warmup warmup = new Warmup();
+
+    public Map<String, Api> getApis() {
+        return apis;
+    }
+
+    public void setApis(Map<String, Api> apis) {
+        this.apis = apis;
+    }
+
+    public Duration getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(Duration deadline) {
+        this.deadline = deadline;
+    }
+
+    public Duration getMaxDeadline() {
+        return maxDeadline;
+    }
+
+    public void setMaxDeadline(Duration maxDeadline) {
+        this.maxDeadline = maxDeadline;
+    }
+
+    public double getShedThreshold() {
+        return shedThreshold;
+    }
+
+    public void setShedThreshold(double shedThreshold) {
+        this.shedThreshold = shedThreshold;
+    }
+
+    public int getMaxBatchQueries() {
+        return maxBatchQueries;
+    }
+
+    public void setMaxBatchQueries(int maxBatchQueries) {
+        this.maxBatchQueries = maxBatchQueries;
+    }
+
+    public int getMaxBatchKeys() {
+        return maxBatchKeys;
+    }
+
+    public void setMaxBatchKeys(int maxBatchKeys) {
+        this.maxBatchKeys = maxBatchKeys;
+    }
+
+    public boolean isServerTiming() {
+        return serverTiming;
+    }
+
+    public void setServerTiming(boolean serverTiming) {
+        this.serverTiming = serverTiming;
+    }
+
+    public Client getClient() {
+        return client;
+    }
+
+    public void setClient(Client client) {
+        this.client = client;
+    }
+
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    public Warmup getWarmup() {
+        return warmup;
+    }
+
+    public void setWarmup(Warmup warmup) {
+        this.warmup = warmup;
+    }
+
+    /**
+     * Replicas sharing their batching: every (API, key) is owned by one replica of a consistent-hash ring and the
+     * others forward the key to it, so the owner batches and deduplicates the key for the whole cluster.
+     */
+    public static class Cluster {
+        private boolean enabled = false;
+        /**
+         * Base URL the other replicas reach this one under, e.g. {@code http://10.0.0.1:8080}.
+         */
+        private String self;
+        /**
+         * Base URLs of all replicas, this one may be listed too. Every replica must be given the same set.
+         */
+        private List<String> peers = new ArrayList<>();
+        /**
+         * Points of every replica on the ring, more spread the keys more evenly.
+         */
+        private int virtualNodes = 128;
+        /**
+         * Time a forwarded batch may take beyond the deadline sent to the owner, for the network and the response,
+         * before its keys are batched locally instead. The owner is given the earliest deadline of the batch.
+         */
+        private Duration margin = Duration.ofMillis(250);
+        /**
+         * How long a replica that failed a forwarded batch is skipped, its keys are batched locally meanwhile.
+         */
+        private Duration retryInterval = Duration.ofSeconds(5);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getSelf() {
+            return self;
+        }
+
+        public void setSelf(String self) {
+            this.self = self;
+        }
+
+        public List<String> getPeers() {
+            return peers;
+        }
+
+        public void setPeers(List<String> peers) {
+            this.peers = peers;
+        }
+
+        public int getVirtualNodes() {
+            return virtualNodes;
+        }
+
+        public void setVirtualNodes(int virtualNodes) {
+            this.virtualNodes = virtualNodes;
+        }
+
+        public Duration getMargin() {
+            return margin;
+        }
+
+        public void setMargin(Duration margin) {
+            this.margin = margin;
+        }
+
+        public Duration getRetryInterval() {
+            return retryInterval;
+        }
+
+        public void setRetryInterval(Duration retryInterval) {
+            this.retryInterval = retryInterval;
+        }
+    }
+
+    /**
+     * Work done after startup and before the readiness probe reports the service as accepting traffic, so the first
+     * requests of a new replica do not pay for connection setup, class loading and interpreted code.
+     */
+    public static class Warmup {
+        private boolean enabled = false;
+        /**
+         * Backend calls sent at once to open pooled connections, for the key {@code warmup} of every API in turn.
+         */
+        private int connections = 0;
+        /**
+         * Synthetic requests asking every API for a few made-up keys, run through batching, decoding and the
+         * response encoder.
+         */
+        private int requests = 200;
+        private int keysPerRequest = 5;
+        /**
+         * Answer the synthetic requests by an in-process stub instead of the backend.
+         */
+        private boolean stub = true;
+        /**
+         * Keys fetched from the backend by API, cached by the APIs with a cache.
+         */
+        private Map<String, List<String>> hotKeys = new LinkedHashMap<>();
+        /**
+         * Upper bound of the warm-up, the service accepts traffic when it passes whether the warm-up finished or not.
+         */
+        private Duration timeout = Duration.ofSeconds(30);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getConnections() {
+            return connections;
+        }
+
+        public void setConnections(int connections) {
+            this.connections = connections;
+        }
+
+        public int getRequests() {
+            return requests;
+        }
+
+        public void setRequests(int requests) {
+            this.requests = requests;
+        }
+
+        public int getKeysPerRequest() {
+            return keysPerRequest;
+        }
+
+        public void setKeysPerRequest(int keysPerRequest) {
+            this.keysPerRequest = keysPerRequest;
+        }
+
+        public boolean isStub() {
+            return stub;
+        }
+
+        public void setStub(boolean stub) {
+            this.stub = stub;
+        }
+
+        public Map<String, List<String>> getHotKeys() {
+            return hotKeys;
+        }
+
+        public void setHotKeys(Map<String, List<String>> hotKeys) {
+            this.hotKeys = hotKeys;
+        }
+
+        public Duration getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(Duration timeout) {
+            this.timeout = timeout;
+        }
+    }
+
+    /**
+     * HTTP client used for all calls to the backend.
+     */
+    public static class Client {
+        /**
+         * Connections to the backend host, with HTTP/2 every connection carries several batch calls at once.
+         */
+        private int maxConnections = 500;
+        /**
+         * Calls that may wait for a free connection, beyond it calls fail right away.
+         */
+        private int pendingAcquireMaxCount = 1_000;
+        private Duration pendingAcquireTimeout = Duration.ofSeconds(2);
+        private Duration maxIdleTime = Duration.ofSeconds(30);
+        private Duration maxLifeTime = Duration.ofMinutes(5);
+        /**
+         * Interval of the background eviction of idle and expired connections, zero evicts only on acquire.
+         */
+        private Duration evictionInterval = Duration.ofSeconds(30);
+        private Duration connectTimeout = Duration.ofSeconds(1);
+        /**
+         * Reuse a connection for further calls (HTTP persistent connections), off closes it after every call.
+         */
+        private boolean keepAlive = true;
+        /**
+         * TCP keep-alive probes ({@code SO_KEEPALIVE}) on idle connections.
+         */
+        private boolean tcpKeepAlive = true;
+        private boolean tcpNoDelay = true;
+        /**
+         * Speak HTTP/2 over cleartext (h2c) to the backend, falling back to HTTP/1.1 if it does not upgrade.
+         */
+        private boolean http2 = false;
+        private boolean compression = true;
+        /**
+         * Publish connection pool and HTTP client meters ({@code reactor.netty.*}).
+         */
+        private boolean metrics = true;
+
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        public void setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+        }
+
+        public int getPendingAcquireMaxCount() {
+            return pendingAcquireMaxCount;
+        }
+
+        public void setPendingAcquireMaxCount(int pendingAcquireMaxCount) {
+            this.pendingAcquireMaxCount = pendingAcquireMaxCount;
+        }
+
+        public Duration getPendingAcquireTimeout() {
+            return pendingAcquireTimeout;
+        }
+
+        public void setPendingAcquireTimeout(Duration pendingAcquireTimeout) {
+            this.pendingAcquireTimeout = pendingAcquireTimeout;
+        }
+
+        public Duration getMaxIdleTime() {
+            return maxIdleTime;
+        }
+
+        public void setMaxIdleTime(Duration maxIdleTime) {
+            this.maxIdleTime = maxIdleTime;
+        }
+
+        public Duration getMaxLifeTime() {
+            return maxLifeTime;
+        }
+
+        public void setMaxLifeTime(Duration maxLifeTime) {
+            this.maxLifeTime = maxLifeTime;
+        }
+
+        public Duration getEvictionInterval() {
+            return evictionInterval;
+        }
+
+        public void setEvictionInterval(Duration evictionInterval) {
+            this.evictionInterval = evictionInterval;
+        }
+
+        public Duration getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        public void setConnectTimeout(Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+        }
+
+        public boolean isKeepAlive() {
+            return keepAlive;
+        }
+
+        public void setKeepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+        }
+
+        public boolean isTcpKeepAlive() {
+            return tcpKeepAlive;
+        }
+
+        public void setTcpKeepAlive(boolean tcpKeepAlive) {
+            this.tcpKeepAlive = tcpKeepAlive;
+        }
+
+        public boolean isTcpNoDelay() {
+            return tcpNoDelay;
+        }
+
+        public void setTcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+        }
+
+        public boolean isHttp2() {
+            return http2;
+        }
+
+        public void setHttp2(boolean http2) {
+            this.http2 = http2;
+        }
+
+        public boolean isCompression() {
+            return compression;
+        }
+
+        public void setCompression(boolean compression) {
+            this.compression = compression;
+        }
+
+        public boolean isMetrics() {
+            return metrics;
+        }
+
+        public void setMetrics(boolean metrics) {
+            this.metrics = metrics;
+        }
+    }
+
+    /**
+     * One backend API, called with batches of keys and answering with a JSON object of key to value.
+     */
+    public static class Api {
+        /**
+         * URI template of a batch call relative to the backend host, {@code {queries}} is replaced by the comma
+         * joined keys.
+         */
+        private String path;
+        /**
+         * Java type of the answer to one key in Jackson's canonical form, e.g. {@code java.lang.Double} or
+         * {@code java.util.List<java.lang.String>}.
+         */
+        private String type = Object.class.getName();
+        /**
+         * Time a downstream call including its retries may take, its keys are answered empty after it.
+         */
+        private Duration timeout = Duration.ofSeconds(10);
+        /**
+         * Bytes the encoded keys of one downstream call may take in the URL, larger batches are split into calls
+         * sent concurrently.
+         */
+        private int maxQueryBytes = 2048;
+        private Cache cache = new Cache();
+        /**
+         * Lane of the keys of requests that do not ask for one with the X-Aggregation-Priority header.
+         */
+        private Priority priority = Priority.INTERACTIVE;
+        /**
+         * Batching of interactive keys.
+         */
+        private Batching batching = new Batching();
+        /**
+         * Batching of bulk keys, by default large batches that are never flushed just because the API is idle.
+         */
+        private Batching bulkBatching = new Batching(50, Duration.ofSeconds(1), 10_000, 50, false);
+        /**
+         * Batching pipelines the keys of the API are hash partitioned over, 0 for one per available processor. The
+         * queue capacity and concurrency of every lane are split evenly between them.
+         */
+        private int shards;
+        private Retry retry = new Retry();
+        private Hedging hedging = new Hedging();
+        private CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+        public Api() {
+        }
+
+        public Api(String path, String type, Cache cache) {
+            this.path = path;
+            this.type = type;
+            this.cache = cache;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public void setPath(String path) {
+            this.path = path;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        public Duration getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(Duration timeout) {
+            this.timeout = timeout;
+        }
+
+        public int getMaxQueryBytes() {
+            return maxQueryBytes;
+        }
+
+        public void setMaxQueryBytes(int maxQueryBytes) {
+            this.maxQueryBytes = maxQueryBytes;
+        }
+
+        public Cache getCache() {
+            return cache;
+        }
+
+        public void setCache(Cache cache) {
+            this.cache = cache;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public void setPriority(Priority priority) {
+            this.priority = priority;
+        }
+
+        public Batching getBatching() {
+            return batching;
+        }
+
+        public void setBatching(Batching batching) {
+            this.batching = batching;
+        }
+
+        public Batching getBulkBatching() {
+            return bulkBatching;
+        }
+
+        public void setBulkBatching(Batching bulkBatching) {
+            this.bulkBatching = bulkBatching;
+        }
+
+        /**
+         * Batching of the given lane.
+         */
+        public Batching getBatching(Priority priority) {
+            return priority == Priority.BULK ? bulkBatching : batching;
+        }
+
+        public int getShards() {
+            return shards;
+        }
+
+        public void setShards(int shards) {
+            this.shards = shards;
+        }
+
+        public Retry getRetry() {
+            return retry;
+        }
+
+        public void setRetry(Retry retry) {
+            this.retry = retry;
+        }
+
+        public Hedging getHedging() {
+            return hedging;
+        }
+
+        public void setHedging(Hedging hedging) {
+            this.hedging = hedging;
+        }
+
+        public CircuitBreaker getCircuitBreaker() {
+            return circuitBreaker;
+        }
+
+        public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+        }
+    }
+
+    public static class Batching {
+        private int minSize = 1;
+        private int maxSize = 100;
+        private Duration minWait = Duration.ofMillis(1);
+        private Duration maxWait = Duration.ofSeconds(5);
+        /**
+         * Time a key may spend waiting for its batch plus the downstream call, the flush deadline is what is
+         * left of it once the observed downstream latency is taken off.
+         */
+        private Duration latencyBudget = Duration.ofMillis(200);
+        /**
+         * Time constant of the decaying arrival rate estimate.
+         */
+        private Duration rateWindow = Duration.ofSeconds(1);
+        /**
+         * Keys that may wait for the batcher, keys submitted beyond it resolve to empty right away.
+         */
+        private int queueCapacity = 10_000;
+        /**
+         * Downstream calls of the API in flight at once, further batches wait for a call to finish.
+         */
+        private int maxConcurrency = 500;
+        /**
+         * Flush a key right away while no batch of the API is in flight.
+         */
+        private boolean idleFlush = true;
+
+        public Batching() {
+        }
+
+        public Batching(int minSize, Duration latencyBudget, int queueCapacity, int maxConcurrency, boolean idleFlush) {
+            this.minSize = minSize;
+            this.latencyBudget = latencyBudget;
+            this.queueCapacity = queueCapacity;
+            this.maxConcurrency = maxConcurrency;
+            this.idleFlush = idleFlush;
+        }
+
+        public int getMinSize() {
+            return minSize;
+        }
+
+        public void setMinSize(int minSize) {
+            this.minSize = minSize;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public Duration getMinWait() {
+            return minWait;
+        }
+
+        public void setMinWait(Duration minWait) {
+            this.minWait = minWait;
+        }
+
+        public Duration getMaxWait() {
+            return maxWait;
+        }
+
+        public void setMaxWait(Duration maxWait) {
+            this.maxWait = maxWait;
+        }
+
+        public Duration getLatencyBudget() {
+            return latencyBudget;
+        }
+
+        public void setLatencyBudget(Duration latencyBudget) {
+            this.latencyBudget = latencyBudget;
+        }
+
+        public Duration getRateWindow() {
+            return rateWindow;
+        }
+
+        public void setRateWindow(Duration rateWindow) {
+            this.rateWindow = rateWindow;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        public int getMaxConcurrency() {
+            return maxConcurrency;
+        }
+
+        public void setMaxConcurrency(int maxConcurrency) {
+            this.maxConcurrency = maxConcurrency;
+        }
+
+        public boolean isIdleFlush() {
+            return idleFlush;
+        }
+
+        public void setIdleFlush(boolean idleFlush) {
+            this.idleFlush = idleFlush;
+        }
+    }
+
+    public static class Retry {
+        private int maxAttempts = 3;
+        private Duration minBackoff = Duration.ofMillis(50);
+        private Duration maxBackoff = Duration.ofSeconds(1);
+        private double jitter = 0.5;
+        /**
+         * Retries earned by every downstream call, 0.2 lets retries add at most a fifth to the backend load.
+         */
+        private double budgetRatio = 0.2;
+        /**
+         * Retries that may be saved up while the backend is healthy.
+         */
+        private int budgetCapacity = 10;
+
+        public int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        public void setMaxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+        }
+
+        public Duration getMinBackoff() {
+            return minBackoff;
+        }
+
+        public void setMinBackoff(Duration minBackoff) {
+            this.minBackoff = minBackoff;
+        }
+
+        public Duration getMaxBackoff() {
+            return maxBackoff;
+        }
+
+        public void setMaxBackoff(Duration maxBackoff) {
+            this.maxBackoff = maxBackoff;
+        }
+
+        public double getJitter() {
+            return jitter;
+        }
+
+        public void setJitter(double jitter) {
+            this.jitter = jitter;
+        }
+
+        public double getBudgetRatio() {
+            return budgetRatio;
+        }
+
+        public void setBudgetRatio(double budgetRatio) {
+            this.budgetRatio = budgetRatio;
+        }
+
+        public int getBudgetCapacity() {
+            return budgetCapacity;
+        }
+
+        public void setBudgetCapacity(int budgetCapacity) {
+            this.budgetCapacity = budgetCapacity;
+        }
+    }
+
+    public static class Hedging {
+        private boolean enabled = false;
+        /**
+         * Percentile of the recent attempt latencies after which an attempt gets a duplicate.
+         */
+        private double percentile = 0.95;
+        /**
+         * Lower bound of the hedge delay, so fast backends are not hedged on noise.
+         */
+        private Duration minDelay = Duration.ofMillis(10);
+        /**
+         * Number of most recent successful attempts the percentile is computed over.
+         */
+        private int windowSize = 100;
+        private int minimumCalls = 20;
+        /**
+         * Hedges earned by every downstream call, 0.05 lets hedges add at most a twentieth to the backend load.
+         */
+        private double budgetRatio = 0.05;
+        /**
+         * Hedges that may be saved up.
+         */
+        private int budgetCapacity = 5;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public double getPercentile() {
+            return percentile;
+        }
+
+        public void setPercentile(double percentile) {
+            this.percentile = percentile;
+        }
+
+        public Duration getMinDelay() {
+            return minDelay;
+        }
+
+        public void setMinDelay(Duration minDelay) {
+            this.minDelay = minDelay;
+        }
+
+        public int getWindowSize() {
+            return windowSize;
+        }
+
+        public void setWindowSize(int windowSize) {
+            this.windowSize = windowSize;
+        }
+
+        public int getMinimumCalls() {
+            return minimumCalls;
+        }
+
+        public void setMinimumCalls(int minimumCalls) {
+            this.minimumCalls = minimumCalls;
+        }
+
+        public double getBudgetRatio() {
+            return budgetRatio;
+        }
+
+        public void setBudgetRatio(double budgetRatio) {
+            this.budgetRatio = budgetRatio;
+        }
+
+        public int getBudgetCapacity() {
+            return budgetCapacity;
+        }
+
+        public void setBudgetCapacity(int budgetCapacity) {
+            this.budgetCapacity = budgetCapacity;
+        }
+    }
+
+    public static class CircuitBreaker {
+        private double failureRateThreshold = 0.5;
+        /**
+         * A downstream call taking longer than this counts as slow.
+         */
+        private Duration slowCallDuration = Duration.ofSeconds(2);
+        private double slowCallRateThreshold = 0.8;
+        /**
+         * Number of most recent downstream calls the rates are computed over.
+         */
+        private int windowSize = 20;
+        private int minimumCalls = 10;
+        /**
+         * How long an open circuit fails keys right away before it lets a probe through.
+         */
+        private Duration openDuration = Duration.ofSeconds(5);
+
+        public double getFailureRateThreshold() {
+            return failureRateThreshold;
+        }
+
+        public void setFailureRateThreshold(double failureRateThreshold) {
+            this.failureRateThreshold = failureRateThreshold;
+        }
+
+        public Duration getSlowCallDuration() {
+            return slowCallDuration;
+        }
+
+        public void setSlowCallDuration(Duration slowCallDuration) {
+            this.slowCallDuration = slowCallDuration;
+        }
+
+        public double getSlowCallRateThreshold() {
+            return slowCallRateThreshold;
+        }
+
+        public void setSlowCallRateThreshold(double slowCallRateThreshold) {
+            this.slowCallRateThreshold = slowCallRateThreshold;
+        }
+
+        public int getWindowSize() {
+            return windowSize;
+        }
+
+        public void setWindowSize(int windowSize) {
+            this.windowSize = windowSize;
+        }
+
+        public int getMinimumCalls() {
+            return minimumCalls;
+        }
+
+        public void setMinimumCalls(int minimumCalls) {
+            this.minimumCalls = minimumCalls;
+        }
+
+        public Duration getOpenDuration() {
+            return openDuration;
+        }
+
+        public void setOpenDuration(Duration openDuration) {
+            this.openDuration = openDuration;
+        }
+    }
+
+    public static class Cache {
+        /**
+         * How long a value answered by the backend is served from the cache, zero disables caching.
+         */
+        private Duration ttl = Duration.ZERO;
+        /**
+         * How long a key the backend answered with nothing is remembered as empty, zero disables negative caching.
+         */
+        private Duration negativeTtl = Duration.ZERO;
+        private long maxSize = 10_000;
+
+        public Cache() {
+        }
+
+        public Cache(Duration ttl, Duration negativeTtl, long maxSize) {
+            this.ttl = ttl;
+            this.negativeTtl = negativeTtl;
+            this.maxSize = maxSize;
+        }
+
+        public Duration getTtl() {
+            return ttl;
+        }
+
+        public void setTtl(Duration ttl) {
+            this.ttl = ttl;
+        }
+
+        public Duration getNegativeTtl() {
+            return negativeTtl;
+        }
+
+        public void setNegativeTtl(Duration negativeTtl) {
+            this.negativeTtl = negativeTtl;
+        }
+
+        public long getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(long maxSize) {
+            this.maxSize = maxSize;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.echyrski.aggregation.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.echyrski.aggregation.model.AggregationEvent;
+import org.echyrski.aggregation.model.AggregationQuery;
+import org.echyrski.aggregation.model.AggregationResponse;
+import org.echyrski.aggregation.model.IndexedAggregationResponse;
+import org.springframework.aot.hint.BindingReflectionHintsRegistrar;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+
+/**
+ * Reflection a native image needs beyond what Spring AOT infers: Jackson binding of the request and response
+ * records, and the answer types of the APIs, which are looked up by name from {@code aggregation.apis.*.type}.
+ * An API registered with an answer type not listed here needs its own hint in a native image.
+ */
+public class AggregationRuntimeHints implements RuntimeHintsRegistrar {
+
+    private static final List<Class<?>> ANSWER_TYPES = List.of(Object.class, String.class, Double.class,
+            Long.class, Integer.class, Boolean.class, List.class, ArrayList.class);
+
+    @Override
+    public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+        new BindingReflectionHintsRegistrar().registerReflectionHints(hints.reflection(),
+                AggregationResponse.class, AggregationQuery.class, AggregationEvent.class, IndexedAggregationResponse.class);
+        // Jackson creates the answers through their constructors and factory methods, e.g. Double.valueOf
+        for (Class<?> type : ANSWER_TYPES) {
+            hints.reflection().registerType(type, MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS, MemberCategory.INVOKE_PUBLIC_METHODS);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.echyrski.aggregation.config;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.echyrski.aggregation.controller.AggregationResponseEncoder;
+import org.echyrski.aggregation.model.AggregationResponse;
+import org.echyrski.aggregation.service.AggregationService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.PooledByteBufAllocator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Warm-up run after the aggregation service started and before Spring Boot reports it ready for traffic, as the
+ * readiness state only changes once every application runner returned. In order it
+ * <ul>
+ * <li>opens {@code connections} pooled backend connections,</li>
+ * <li>sends {@code requests} synthetic requests for made-up keys of every API through batching, decoding and the
+ * response encoder, answered by an in-process stub unless {@code stub} is off. They go through a throwaway service
+ * over the same APIs, so the made-up keys never reach the caches, circuit breakers or meters of the real one,</li>
+ * <li>fetches the {@code hot-keys} into the caches of their APIs.</li>
+ * </ul>
+ * A step failing or the timeout passing is logged and the service starts accepting traffic anyway.
+ */
+public class AggregationWarmup implements ApplicationRunner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AggregationWarmup.class);
+
+    /**
+     * Synthetic requests in flight at once, enough for their keys to share batches.
+     */
+    private static final int CONCURRENCY = 256;
+
+    private final AggregationService aggregationService;
+    private final WebClient.Builder webClientBuilder;
+    private final String baseUrl;
+    private final AggregationProperties properties;
+    private final ObjectMapper objectMapper;
+    private final AggregationResponseEncoder encoder;
+    private final DataBufferFactory bufferFactory = new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+
+    /**
+     * @param webClientBuilder client of the backend, used by the synthetic requests without the stub
+     * @param baseUrl          host of the backend
+     */
+    public AggregationWarmup(AggregationService aggregationService, WebClient.Builder webClientBuilder, String baseUrl,
+                             AggregationProperties properties, ObjectMapper objectMapper) {
+        this.aggregationService = aggregationService;
+        this.webClientBuilder = webClientBuilder;
+        this.baseUrl = baseUrl;
+        this.properties = properties;
+        this.objectMapper = objectMapper;
+        this.encoder = new AggregationResponseEncoder(objectMapper);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        AggregationProperties.Warmup warmup = properties.getWarmup();
+        long startedAt = System.nanoTime();
+        try {
+            aggregationService.openConnections(warmup.getConnections())
+                    .then(Mono.using(() -> syntheticService(warmup.isStub()), service -> syntheticRequests(service, warmup),
+                            AggregationService::dispose))
+                    .then(Mono.defer(() -> preload(warmup.getHotKeys())))
+                    .block(warmup.getTimeout());
+            LOGGER.info("Warm-up finished in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+        } catch (RuntimeException e) {
+            LOGGER.warn("Warm-up stopped after {} ms, accepting traffic anyway: {}",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt), e.toString());
+        }
+    }
+
+    Mono<Void> syntheticRequests(AggregationService service, AggregationProperties.Warmup warmup) {
+        int keysPerRequest = Math.max(1, warmup.getKeysPerRequest());
+        return Flux.range(0, warmup.getRequests())
+                .flatMap(request -> Flux.fromIterable(service.apis())
+                        .flatMap(api -> service.submitRequest(api, keys(request, keysPerRequest)).map(answers -> Map.entry(api, answers)))
+                        .collectMap(Map.Entry::getKey, Map.Entry::getValue)
+                        .doOnNext(answers -> encode(service, answers)), CONCURRENCY)
+                .then();
+    }
+
+    Mono<Void> preload(Map<String, List<String>> hotKeys) {
+        return Flux.fromIterable(hotKeys.entrySet())
+                .concatMap(api -> Mono.defer(() -> aggregationService.submitRequest(api.getKey(), api.getValue()))
+                        .doOnNext(answers -> LOGGER.info("Preloaded {} of {} keys of {}",
+                                answers.values().stream().filter(Optional::isPresent).count(), answers.size(), api.getKey()))
+                        .onErrorResume(error -> {
+                            LOGGER.warn("Preloading {} failed: {}", api.getKey(), error.toString());
+                            return Mono.empty();
+                        }))
+                .then();
+    }
+
+    private static List<String> keys(int request, int keysPerRequest) {
+        List<String> keys = new ArrayList<>(keysPerRequest);
+        for (int key = 0; key < keysPerRequest; key++) {
+            keys.add("warmup-" + (request * keysPerRequest + key));
+        }
+        return keys;
+    }
+
+    private void encode(AggregationService service, Map<String, Map<String, Optional<Object>>> answers) {
+        Map<String, Map<String, Optional<Object>>> apis = new LinkedHashMap<>();
+        for (String api : service.apis()) {
+            apis.put(api, answers.getOrDefault(api, Map.of()));
+        }
+        DataBufferUtils.release(encoder.encodeValue(new AggregationResponse(apis), bufferFactory,
+                ResolvableType.forClass(AggregationResponse.class), MediaType.APPLICATION_JSON, Map.of()));
+    }
+
+    /**
+     * Service over the same APIs with its own caches, circuit breakers and meters, disposed once the synthetic
+     * requests are done. Its backend is an in-process stub or the real one.
+     */
+    private AggregationService syntheticService(boolean stub) {
+        AggregationProperties synthetic = new AggregationProperties();
+        synthetic.setApis(properties.getApis());
+        synthetic.setDeadline(properties.getDeadline());
+        AggregationService service = stub
+                ? new AggregationService(WebClient.builder().exchangeFunction(AggregationWarmup::stubExchange), "http://warmup",
+                        synthetic, objectMapper, new SimpleMeterRegistry())
+                : new AggregationService(webClientBuilder.clone(), baseUrl, synthetic, objectMapper, new SimpleMeterRegistry());
+        service.init();
+        return service;
+    }
+
+    /**
+     * Answers every key of a {@code ?q=} batch with {@code null}, which decodes to an empty answer whatever the type
+     * of the API.
+     */
+    private static Mono<ClientResponse> stubExchange(ClientRequest request) {
+        StringBuilder body = new StringBuilder("{");
+        UriComponentsBuilder.fromUri(request.url()).build().getQueryParams().forEach((name, values) -> {
+            for (String value : values) {
+                for (String key : UriUtils.decode(value, UTF_8).split(",")) {
+                    body.append(body.length() > 1 ? "," : "").append('"').append(key).append("\":null");
+                }
+            }
+        });
+        return Mono.just(ClientResponse.create(HttpStatus.OK)
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .body(body.append('}').toString())
+                .build());
+    }
+}
@@ -0,0 +1,31 @@
+package org.echyrski.aggregation.config;
+
+import org.echyrski.aggregation.controller.AggregationResponseEncoder;
+import org.echyrski.aggregation.controller.ServerTimingFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+@Configuration
+public class WebConfiguration implements WebFluxConfigurer {
+
+    private final ObjectMapper objectMapper;
+
+    public WebConfiguration(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public void configureHttpMessageCodecs(ServerCodecConfigurer configurer) {
+        // Typed encoders are consulted before the generic Jackson one
+        configurer.customCodecs().register(new AggregationResponseEncoder(objectMapper));
+    }
+
+    @Bean
+    public ServerTimingFilter serverTimingFilter(AggregationProperties properties) {
+        return new ServerTimingFilter(properties.isServerTiming());
+    }
+}
@@ -1,17 +1,50 @@
 package org.echyrski.aggregation.controller;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 
+import org.echyrski.aggregation.model.AggregationEvent;
+import org.echyrski.aggregation.model.AggregationQuery;
 import org.echyrski.aggregation.model.AggregationResponse;
+import org.echyrski.aggregation.model.IndexedAggregationResponse;
 import org.echyrski.aggregation.service.AggregationService;
+import org.echyrski.aggregation.service.Priority;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.util.CollectionUtils;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 @RestController
 public class AggregationController {
+    /**
+     * Milliseconds the client is willing to wait, keys not answered in time are returned empty.
+     */
+    public static final String DEADLINE_HEADER = "X-Aggregation-Deadline";
+    /**
+     * Lane the keys are batched in, {@code interactive} or {@code bulk}, the default lane of each API if absent.
+     */
+    public static final String PRIORITY_HEADER = "X-Aggregation-Priority";
+
     private final AggregationService aggregationService;
 
     public AggregationController(AggregationService aggregationService) {
@@ -19,16 +52,298 @@ public class AggregationController {
 
     }
 
+    /**
+     * Answers the keys of every registered API named by a query parameter, e.g. {@code ?pricing=NL,CN&track=1}.
+     * Every registered API is part of the response, the ones not asked for without keys.
+     */
     @GetMapping("/aggregation")
     public Mono<AggregationResponse> aggregate(
-            @RequestParam(name = "pricing", required = false) List<String> pricing,
-            @RequestParam(name = "track", required = false) List<String> track,
-            @RequestParam(name = "shipments", required = false) List<String> shipments) {
-        return Mono.zip(
-                aggregationService.submitPricingRequest(pricing),
-                aggregationService.submitTrackRequest(track),
-                aggregationService.submitShipmentRequest(shipments)
-        ).map(tuple -> new AggregationResponse(tuple.getT1(), tuple.getT2(), tuple.getT3()));
+            @RequestParam MultiValueMap<String, String> params,
+            @RequestHeader(name = DEADLINE_HEADER, required = false) Long deadlineMillis,
+            @RequestHeader(name = PRIORITY_HEADER, required = false) String priorityName) {
+        Map<String, List<String>> keys = requestedKeys(params);
+        Priority priority = priority(priorityName);
+        if (aggregationService.isSaturated(keys, priority)) {
+            return Mono.error(overloaded());
+        }
+        Duration deadline = aggregationService.deadline(deadlineMillis);
+        return submit(keys, deadline, priority).map(this::response);
+    }
+
+    @GetMapping(value = "/aggregation", produces = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.TEXT_EVENT_STREAM_VALUE})
+    public Flux<AggregationEvent> aggregateStream(
+            @RequestParam MultiValueMap<String, String> params,
+            @RequestHeader(name = DEADLINE_HEADER, required = false) Long deadlineMillis,
+            @RequestHeader(name = PRIORITY_HEADER, required = false) String priorityName) {
+        Map<String, List<String>> keys = requestedKeys(params);
+        Priority priority = priority(priorityName);
+        if (aggregationService.isSaturated(keys, priority)) {
+            return Flux.error(overloaded());
+        }
+        Duration deadline = aggregationService.deadline(deadlineMillis);
+        List<Flux<AggregationEvent>> entries = new ArrayList<>(keys.size());
+        keys.forEach((api, apiKeys) -> entries.add(aggregationService.streamRequest(api, apiKeys, deadline, priority)
+                .map(answer -> AggregationEvent.entry(api, answer.getKey(), answer.getValue()))));
+        return Flux.merge(entries).concatWith(Mono.just(AggregationEvent.COMPLETE));
+    }
+
+    /**
+     * Answers many queries in one call. The keys of all queries are submitted together, one collector per API for
+     * the whole batch, and the answers are returned in the order of the queries.
+     */
+    @PostMapping("/aggregation/batch")
+    public Mono<List<AggregationResponse>> aggregateBatch(
+            @RequestBody List<AggregationQuery> queries,
+            @RequestHeader(name = DEADLINE_HEADER, required = false) Long deadlineMillis,
+            @RequestHeader(name = PRIORITY_HEADER, required = false) String priorityName) {
+        String invalid = invalidQueries(queries);
+        if (invalid != null) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, invalid));
+        }
+        if (aggregationService.exceedsBatchLimits(queries.size(), keyCount(queries))) {
+            return Mono.error(tooLarge());
+        }
+        Map<String, List<String>> keys = union(queries);
+        Priority priority = priority(priorityName);
+        if (aggregationService.isSaturated(keys, priority)) {
+            return Mono.error(overloaded());
+        }
+        Duration deadline = aggregationService.deadline(deadlineMillis);
+        return submit(keys, deadline, priority).map(answers -> queries.stream()
+                .map(query -> select(answers, query))
+                .toList());
+    }
+
+    /**
+     * Streams the answer of every query as soon as all of its keys are answered, tagged with the query index.
+     * Queries sharing keys still share the downstream lookups through the single-flight registry.
+     */
+    @PostMapping(value = "/aggregation/batch", produces = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.TEXT_EVENT_STREAM_VALUE})
+    public Flux<IndexedAggregationResponse> aggregateBatchStream(
+            @RequestBody List<AggregationQuery> queries,
+            @RequestHeader(name = DEADLINE_HEADER, required = false) Long deadlineMillis,
+            @RequestHeader(name = PRIORITY_HEADER, required = false) String priorityName) {
+        String invalid = invalidQueries(queries);
+        if (invalid != null) {
+            return Flux.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, invalid));
+        }
+        if (aggregationService.exceedsBatchLimits(queries.size(), keyCount(queries))) {
+            return Flux.error(tooLarge());
+        }
+        Priority priority = priority(priorityName);
+        if (aggregationService.isSaturated(union(queries), priority)) {
+            return Flux.error(overloaded());
+        }
+        Duration deadline = aggregationService.deadline(deadlineMillis);
+        // Every query is submitted right away, the answers are merged in the order they complete
+        List<Mono<IndexedAggregationResponse>> answers = new ArrayList<>(queries.size());
+        for (int i = 0; i < queries.size(); i++) {
+            int index = i;
+            answers.add(submit(requestedKeys(queries.get(index)), deadline, priority)
+                    .map(answer -> new IndexedAggregationResponse(index, response(answer))));
+        }
+        return Flux.merge(answers);
+    }
+
+    /**
+     * Answers the keys of an API another replica forwarded to this one as their owner in cluster mode, as the
+     * backend APIs do, e.g. {@code {"NL": 14.24}}. A saturated owner answers 503, the forwarding replica then
+     * batches the keys itself. Without cluster mode the endpoint answers 404, so that clients cannot bypass the
+     * shedding of the public endpoints.
+     */
+    @PostMapping("/internal/aggregation/{api}")
+    public Mono<Map<String, Optional<Object>>> aggregateForwarded(
+            @PathVariable("api") String api,
+            @RequestBody List<String> keys,
+            @RequestHeader(name = DEADLINE_HEADER, required = false) Long deadlineMillis,
+            @RequestHeader(name = PRIORITY_HEADER, required = false) String priorityName) {
+        if (!aggregationService.isClustered()) {
+            return Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND));
+        }
+        if (!aggregationService.apis().contains(api)) {
+            return Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown API " + api));
+        }
+        if (keys == null || hasInvalidKey(keys)) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Forwarded keys must not be null or blank"));
+        }
+        Priority priority = priority(priorityName);
+        if (aggregationService.isSaturated(Map.of(api, keys), priority)) {
+            return Mono.error(overloaded());
+        }
+        return aggregationService.submitForwardedRequest(api, keys, aggregationService.deadline(deadlineMillis), priority);
+    }
+
+    /**
+     * Submits the keys of every requested API at once.
+     *
+     * @return the answers by API
+     */
+    private Mono<Map<String, Map<String, Optional<Object>>>> submit(Map<String, List<String>> keys, Duration deadline, Priority priority) {
+        if (keys.isEmpty()) {
+            return Mono.just(Map.of());
+        }
+        List<String> apis = new ArrayList<>(keys.keySet());
+        List<Mono<Map<String, Optional<Object>>>> answers = new ArrayList<>(apis.size());
+        keys.forEach((api, apiKeys) -> answers.add(aggregationService.submitRequest(api, apiKeys, deadline, priority)));
+        return Mono.zip(answers, results -> {
+            Map<String, Map<String, Optional<Object>>> byApi = new HashMap<>();
+            for (int i = 0; i < results.length; i++) {
+                @SuppressWarnings("unchecked")
+                Map<String, Optional<Object>> result = (Map<String, Optional<Object>>) results[i];
+                byApi.put(apis.get(i), result);
+            }
+            return byApi;
+        });
+    }
+
+    /**
+     * Response listing every registered API in order, the ones without answers empty.
+     */
+    private AggregationResponse response(Map<String, Map<String, Optional<Object>>> answers) {
+        Map<String, Map<String, Optional<Object>>> apis = new LinkedHashMap<>();
+        for (String api : aggregationService.apis()) {
+            apis.put(api, answers.getOrDefault(api, Map.of()));
+        }
+        return new AggregationResponse(apis);
+    }
+
+    /**
+     * Keys of the registered APIs named by the query parameters, a parameter may list several comma separated keys
+     * and be repeated.
+     */
+    private Map<String, List<String>> requestedKeys(MultiValueMap<String, String> params) {
+        Map<String, List<String>> keys = new LinkedHashMap<>();
+        for (String api : aggregationService.apis()) {
+            List<String> values = params.get(api);
+            if (values == null) {
+                continue;
+            }
+            List<String> apiKeys = new ArrayList<>();
+            for (String value : values) {
+                for (String key : StringUtils.commaDelimitedListToStringArray(value)) {
+                    if (StringUtils.hasText(key)) {
+                        apiKeys.add(key.trim());
+                    }
+                }
+            }
+            if (!apiKeys.isEmpty()) {
+                keys.put(api, apiKeys);
+            }
+        }
+        return keys;
+    }
+
+    private Map<String, List<String>> requestedKeys(AggregationQuery query) {
+        Map<String, List<String>> keys = new LinkedHashMap<>();
+        for (String api : aggregationService.apis()) {
+            List<String> apiKeys = query.keys(api);
+            if (!CollectionUtils.isEmpty(apiKeys)) {
+                keys.put(api, apiKeys);
+            }
+        }
+        return keys;
+    }
+
+    private Map<String, List<String>> union(List<AggregationQuery> queries) {
+        Map<String, List<String>> keys = new LinkedHashMap<>();
+        for (String api : aggregationService.apis()) {
+            Set<String> apiKeys = new LinkedHashSet<>();
+            for (AggregationQuery query : queries) {
+                List<String> queryKeys = query.keys(api);
+                if (queryKeys != null) {
+                    apiKeys.addAll(queryKeys);
+                }
+            }
+            if (!apiKeys.isEmpty()) {
+                keys.put(api, new ArrayList<>(apiKeys));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Keys of the registered APIs over all queries, a key asked for by several queries counted for each.
+     */
+    private int keyCount(List<AggregationQuery> queries) {
+        int count = 0;
+        for (AggregationQuery query : queries) {
+            for (String api : aggregationService.apis()) {
+                List<String> keys = query.keys(api);
+                count += keys == null ? 0 : keys.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Why the queries of a batch request cannot be answered, null if they can. A query must not be null, name only
+     * registered APIs and have no null or blank keys, as those can neither be looked up nor cached.
+     */
+    private String invalidQueries(List<AggregationQuery> queries) {
+        if (queries == null) {
+            return "Batch request has no queries";
+        }
+        for (AggregationQuery query : queries) {
+            if (query == null || query.keys() == null) {
+                return "Batch request has a null query";
+            }
+            for (Map.Entry<String, List<String>> apiKeys : query.keys().entrySet()) {
+                if (!aggregationService.apis().contains(apiKeys.getKey())) {
+                    return "Unknown API " + apiKeys.getKey();
+                }
+                if (apiKeys.getValue() != null && hasInvalidKey(apiKeys.getValue())) {
+                    return "Batch request has a null or blank key of " + apiKeys.getKey();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasInvalidKey(List<String> keys) {
+        for (String key : keys) {
+            if (!StringUtils.hasText(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private AggregationResponse select(Map<String, Map<String, Optional<Object>>> answers, AggregationQuery query) {
+        Map<String, Map<String, Optional<Object>>> apis = new LinkedHashMap<>();
+        for (String api : aggregationService.apis()) {
+            List<String> keys = query.keys(api);
+            if (CollectionUtils.isEmpty(keys)) {
+                apis.put(api, Map.of());
+                continue;
+            }
+            Map<String, Optional<Object>> apiAnswers = answers.getOrDefault(api, Map.of());
+            Map<String, Optional<Object>> selected = new LinkedHashMap<>();
+            for (String key : keys) {
+                Optional<Object> answer = apiAnswers.get(key);
+                selected.put(key, answer == null ? Optional.empty() : answer);
+            }
+            apis.put(api, selected);
+        }
+        return new AggregationResponse(apis);
+    }
+
+    private static Priority priority(String name) {
+        if (name == null) {
+            return null;
+        }
+        try {
+            return Priority.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown priority " + name);
+        }
+    }
+
+    private static ResponseStatusException overloaded() {
+        return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Aggregation queues are saturated");
+    }
+
+    private static ResponseStatusException tooLarge() {
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST, "Batch request has too many queries or keys");
     }
 
 
@@ -0,0 +1,129 @@
+package org.echyrski.aggregation.controller;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.echyrski.aggregation.model.AggregationResponse;
+import org.echyrski.aggregation.service.KeyedResults;
+import org.reactivestreams.Publisher;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.EncodingException;
+import org.springframework.core.codec.Encoder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.MediaType;
+import org.springframework.util.MimeType;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Writes an {@link AggregationResponse} as JSON with Jackson's streaming generator straight into a buffer of the
+ * server's (pooled) buffer factory. Answers held in {@link KeyedResults} are read by slot, so no {@link Optional} or
+ * map entry is created, and the known answer types are written without reflection. A missing answer is written as
+ * {@code null}, like the default Jackson encoding.
+ */
+public class AggregationResponseEncoder implements Encoder<AggregationResponse> {
+
+    private static final List<MimeType> MIME_TYPES = List.of(MediaType.APPLICATION_JSON);
+    private static final int INITIAL_CAPACITY = 256;
+    private static final byte[] ARRAY_START = {'['};
+    private static final byte[] SEPARATOR = {','};
+    private static final byte[] ARRAY_END = {']'};
+
+    private final ObjectMapper objectMapper;
+
+    public AggregationResponseEncoder(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public boolean canEncode(ResolvableType elementType, MimeType mimeType) {
+        return AggregationResponse.class.isAssignableFrom(elementType.toClass())
+                && (mimeType == null || MIME_TYPES.stream().anyMatch(supported -> supported.isCompatibleWith(mimeType)));
+    }
+
+    @Override
+    public Flux<DataBuffer> encode(Publisher<? extends AggregationResponse> inputStream, DataBufferFactory bufferFactory,
+                                   ResolvableType elementType, MimeType mimeType, Map<String, Object> hints) {
+        if (inputStream instanceof Mono<? extends AggregationResponse> single) {
+            return single.map(response -> encodeValue(response, bufferFactory, elementType, mimeType, hints)).flux();
+        }
+        // A stream of responses is written as a JSON array, like the Jackson encoder does
+        AtomicBoolean first = new AtomicBoolean(true);
+        return Flux.concat(
+                Mono.fromSupplier(() -> bufferFactory.wrap(ARRAY_START)),
+                Flux.from(inputStream).concatMapIterable(response -> {
+                    DataBuffer value = encodeValue(response, bufferFactory, elementType, mimeType, hints);
+                    return first.getAndSet(false) ? List.of(value) : List.of(bufferFactory.wrap(SEPARATOR), value);
+                }),
+                Mono.fromSupplier(() -> bufferFactory.wrap(ARRAY_END)));
+    }
+
+    @Override
+    public DataBuffer encodeValue(AggregationResponse response, DataBufferFactory bufferFactory, ResolvableType valueType,
+                                  MimeType mimeType, Map<String, Object> hints) {
+        DataBuffer buffer = bufferFactory.allocateBuffer(INITIAL_CAPACITY);
+        try (JsonGenerator generator = objectMapper.createGenerator(buffer.asOutputStream())) {
+            generator.writeStartObject();
+            for (Map.Entry<String, Map<String, Optional<Object>>> api : response.apis().entrySet()) {
+                writeAnswers(generator, api.getKey(), api.getValue());
+            }
+            generator.writeEndObject();
+        } catch (IOException e) {
+            DataBufferUtils.release(buffer);
+            throw new EncodingException("Unable to encode the aggregation response", e);
+        } catch (Throwable e) {
+            DataBufferUtils.release(buffer);
+            throw e;
+        }
+        return buffer;
+    }
+
+    @Override
+    public List<MimeType> getEncodableMimeTypes() {
+        return MIME_TYPES;
+    }
+
+    private static void writeAnswers(JsonGenerator generator, String api, Map<String, ? extends Optional<?>> answers) throws IOException {
+        generator.writeFieldName(api);
+        generator.writeStartObject();
+        if (answers instanceof KeyedResults<?> results) {
+            for (int slot = 0; slot < results.size(); slot++) {
+                generator.writeFieldName(results.key(slot));
+                writeValue(generator, results.value(slot));
+            }
+        } else if (answers != null) {
+            for (Map.Entry<String, ? extends Optional<?>> answer : answers.entrySet()) {
+                generator.writeFieldName(answer.getKey());
+                writeValue(generator, answer.getValue() == null ? null : answer.getValue().orElse(null));
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+        } else if (value instanceof Double number) {
+            generator.writeNumber(number);
+        } else if (value instanceof String text) {
+            generator.writeString(text);
+        } else if (value instanceof List<?> list) {
+            generator.writeStartArray();
+            for (Object element : list) {
+                writeValue(generator, element);
+            }
+            generator.writeEndArray();
+        } else {
+            generator.writeObject(value);
+        }
+    }
+}
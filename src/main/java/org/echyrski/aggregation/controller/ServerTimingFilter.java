@@ -0,0 +1,64 @@
+package org.echyrski.aggregation.controller;
+
+import java.util.Locale;
+import java.util.Map;
+
+import org.echyrski.aggregation.service.RequestTimings;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+
+/**
+ * Adds a Server-Timing header with the breakdown of every API a response answered, e.g.
+ * {@code pricing;dur=12.40, pricing-wait;dur=1.10, pricing-downstream;dur=11.20}, in milliseconds. Streaming
+ * responses are committed before their keys are answered and get no header.
+ * <p>
+ * The filter is always registered and switched by {@code aggregation.server-timing} when it is created, since an
+ * AOT processed application evaluates bean conditions at build time.
+ */
+public class ServerTimingFilter implements WebFilter {
+
+    public static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+    private final boolean enabled;
+
+    public ServerTimingFilter(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        if (!enabled) {
+            return chain.filter(exchange);
+        }
+        RequestTimings timings = new RequestTimings();
+        exchange.getResponse().beforeCommit(() -> {
+            String header = header(timings.timings());
+            if (!header.isEmpty()) {
+                exchange.getResponse().getHeaders().add(SERVER_TIMING_HEADER, header);
+            }
+            return Mono.empty();
+        });
+        return chain.filter(exchange).contextWrite(Context.of(RequestTimings.class, timings));
+    }
+
+    private static String header(Map<String, RequestTimings.Timing> timings) {
+        StringBuilder header = new StringBuilder();
+        timings.forEach((api, timing) -> {
+            metric(header, api, timing.totalNanos());
+            metric(header, api + "-wait", timing.waitNanos());
+            metric(header, api + "-downstream", timing.downstreamNanos());
+        });
+        return header.toString();
+    }
+
+    private static void metric(StringBuilder header, String name, long nanos) {
+        if (!header.isEmpty()) {
+            header.append(", ");
+        }
+        header.append(name).append(";dur=").append(String.format(Locale.ROOT, "%.2f", nanos / 1e6));
+    }
+}
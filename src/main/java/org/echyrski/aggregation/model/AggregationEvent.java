@@ -0,0 +1,20 @@
+package org.echyrski.aggregation.model;
+
+import java.util.Optional;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Element of the streamed aggregation response: one entry per resolved key, written as
+ * {@code {"api":"pricing","key":"NL","value":14.24}} with {@code null} for a missing value,
+ * followed by a single {@code {"complete":true}} marker.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record AggregationEvent(String api, String key, Optional<?> value, Boolean complete) {
+
+    public static final AggregationEvent COMPLETE = new AggregationEvent(null, null, null, true);
+
+    public static AggregationEvent entry(String api, String key, Optional<?> value) {
+        return new AggregationEvent(api, key, value, null);
+    }
+}
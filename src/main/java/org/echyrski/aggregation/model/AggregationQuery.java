@@ -0,0 +1,25 @@
+package org.echyrski.aggregation.model;
+
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+/**
+ * One query of a batch request, keys by API like the query parameters of {@code /aggregation}, e.g.
+ * {@code {"pricing":["NL"],"track":["109347263"]}}.
+ */
+public record AggregationQuery(@JsonValue Map<String, List<String>> keys) {
+
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public AggregationQuery {
+    }
+
+    /**
+     * @return the keys of the API, null if the query does not ask for it
+     */
+    public List<String> keys(String api) {
+        return keys == null ? null : keys.get(api);
+    }
+}
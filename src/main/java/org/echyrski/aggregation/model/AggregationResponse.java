@@ -1,12 +1,13 @@
 package org.echyrski.aggregation.model;
 
-import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
-public record AggregationResponse(
-        Map<String, Optional<Double>> pricing,
-        Map<String, Optional<String>> track,
-        Map<String, Optional<List<String>>> shipments
-) {
+import com.fasterxml.jackson.annotation.JsonValue;
+
+/**
+ * Answers by API and key, written as {@code {"pricing":{"NL":14.24},"track":{...}}} with {@code null} for a key
+ * that has no answer.
+ */
+public record AggregationResponse(@JsonValue Map<String, Map<String, Optional<Object>>> apis) {
 }
@@ -0,0 +1,7 @@
+package org.echyrski.aggregation.model;
+
+/**
+ * Element of a streamed batch response, the answer to the query at {@code index} of the request body.
+ */
+public record IndexedAggregationResponse(int index, AggregationResponse response) {
+}
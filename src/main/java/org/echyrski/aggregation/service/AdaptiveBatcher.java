@@ -0,0 +1,341 @@
+package org.echyrski.aggregation.service;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.echyrski.aggregation.config.AggregationProperties;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Groups the keys of one API into batches sized from the observed arrival rate and downstream latency.
+ * The flush deadline is the latency budget minus the downstream latency, the batch size is the number of keys
+ * expected to arrive within that deadline. While no batch of the API is in flight a key is flushed right away, and
+ * keys gathered behind an outstanding batch are flushed as soon as it returns, so a lone request never waits for
+ * the deadline and at high traffic batches grow up to the configured maximum. A batcher that does not flush when
+ * idle always waits for the batch size or the flush deadline, which gathers background traffic into large batches.
+ * <p>
+ * Every batch has an id unique in the JVM, which ties its {@link BatchFlushEvent} to the events of its dispatch.
+ */
+public class AdaptiveBatcher {
+
+    public enum FlushReason {
+        IDLE, SIZE, DEADLINE
+    }
+
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+    private static final double LATENCY_SMOOTHING = 0.2;
+    private static final AtomicLong BATCH_IDS = new AtomicLong();
+
+    private final String api;
+    private final String priority;
+    private final int shard;
+
+    private final int minSize;
+    private final int maxSize;
+    private final long minWaitNanos;
+    private final long maxWaitNanos;
+    private final long latencyBudgetNanos;
+    private final double rateWindowNanos;
+    private final boolean idleFlush;
+    private final Scheduler timer;
+
+    private final Counter idleFlushes;
+    private final Counter sizeFlushes;
+    private final Counter deadlineFlushes;
+    private final DistributionSummary batchSizes;
+    private final Timer batchWait;
+
+    private Batch batch;
+    private BatchFlushEvent flushEvent;
+    private long batchStartedAt;
+    private long generation;
+    private Disposable pendingFlush;
+    private long scheduledFlushAt;
+    private int outstanding;
+    private double arrivalRate;
+    private long arrivalRateUpdatedAt = System.nanoTime();
+    private double latencyNanos;
+    private FluxSink<Batch> downstream;
+
+    public AdaptiveBatcher(String api, AggregationProperties.Batching properties, MeterRegistry meterRegistry) {
+        this(api, Priority.INTERACTIVE, properties, meterRegistry);
+    }
+
+    public AdaptiveBatcher(String api, Priority priority, AggregationProperties.Batching properties, MeterRegistry meterRegistry) {
+        this(api, priority, 0, properties, meterRegistry);
+    }
+
+    /**
+     * @param shard index of the shard of the API the batcher groups keys of, batch meters are shared by all shards
+     */
+    public AdaptiveBatcher(String api, Priority priority, int shard, AggregationProperties.Batching properties, MeterRegistry meterRegistry) {
+        this(api, priority, shard, properties, meterRegistry, Schedulers.parallel());
+    }
+
+    AdaptiveBatcher(String api, AggregationProperties.Batching properties, MeterRegistry meterRegistry, Scheduler timer) {
+        this(api, Priority.INTERACTIVE, properties, meterRegistry, timer);
+    }
+
+    AdaptiveBatcher(String api, Priority priority, AggregationProperties.Batching properties, MeterRegistry meterRegistry, Scheduler timer) {
+        this(api, priority, 0, properties, meterRegistry, timer);
+    }
+
+    AdaptiveBatcher(String api, Priority priority, int shard, AggregationProperties.Batching properties, MeterRegistry meterRegistry, Scheduler timer) {
+        this.api = api;
+        this.priority = priority.name().toLowerCase(Locale.ROOT);
+        this.shard = shard;
+        this.minSize = Math.max(1, properties.getMinSize());
+        this.maxSize = Math.max(minSize, properties.getMaxSize());
+        this.minWaitNanos = properties.getMinWait().toNanos();
+        this.maxWaitNanos = Math.max(minWaitNanos, properties.getMaxWait().toNanos());
+        this.latencyBudgetNanos = properties.getLatencyBudget().toNanos();
+        this.rateWindowNanos = properties.getRateWindow().toNanos();
+        this.idleFlush = properties.isIdleFlush();
+        this.timer = timer;
+        this.batch = new Batch(minSize);
+
+        Tags tags = Tags.of("api", api, "priority", priority.name().toLowerCase(Locale.ROOT));
+        this.idleFlushes = flushCounter(tags, FlushReason.IDLE, meterRegistry);
+        this.sizeFlushes = flushCounter(tags, FlushReason.SIZE, meterRegistry);
+        this.deadlineFlushes = flushCounter(tags, FlushReason.DEADLINE, meterRegistry);
+        this.batchSizes = DistributionSummary.builder("aggregation.batch.size")
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.batchWait = Timer.builder("aggregation.batch.wait")
+                .description("Time the oldest key of a batch waited for the batch to be flushed")
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        // Targets differ between shards, every shard has its own gauges
+        Gauge.builder("aggregation.batch.target.size", this, AdaptiveBatcher::targetSize)
+                .tags(tags)
+                .tag("shard", String.valueOf(shard))
+                .register(meterRegistry);
+        Gauge.builder("aggregation.batch.target.wait", this, batcher -> batcher.targetWaitNanos() / 1e6)
+                .tags(tags)
+                .tag("shard", String.valueOf(shard))
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+    }
+
+    public Flux<Batch> batches() {
+        return Flux.create(sink -> {
+            synchronized (this) {
+                downstream = sink;
+            }
+        });
+    }
+
+    public void add(String key) {
+        add(new PendingKey(key, NO_DEADLINE));
+    }
+
+    /**
+     * Adds the key to the current batch. A key whose deadline would be missed by waiting for the batch deadline
+     * pulls the flush forward, so it still has time for the downstream call.
+     */
+    public void add(PendingKey pendingKey) {
+        Batch ready = null;
+        synchronized (this) {
+            long now = System.nanoTime();
+            updateArrivalRate(now);
+            if (batch.isEmpty()) {
+                batchStartedAt = now;
+                flushEvent = new BatchFlushEvent();
+                flushEvent.begin();
+            }
+            batch.add(pendingKey.key());
+            batch.expectDeadline(pendingKey.deadlineNanos());
+            if (outstanding == 0 && idleFlush) {
+                ready = take(FlushReason.IDLE);
+            } else if (batch.size() >= targetSize()) {
+                ready = take(FlushReason.SIZE);
+            } else {
+                long flushAt = batch.size() == 1 ? now + targetWaitNanos() : scheduledFlushAt;
+                if (pendingKey.deadlineNanos() != NO_DEADLINE) {
+                    long flushBy = pendingKey.deadlineNanos() - (long) latencyNanos;
+                    if (flushBy - now <= 0) {
+                        ready = take(FlushReason.DEADLINE);
+                    } else if (flushBy - flushAt < 0) {
+                        flushAt = flushBy;
+                    }
+                }
+                if (ready == null && (batch.size() == 1 || flushAt != scheduledFlushAt)) {
+                    scheduleFlush(flushAt, now);
+                }
+            }
+        }
+        emit(ready);
+    }
+
+    public synchronized void recordLatency(long nanos) {
+        latencyNanos = latencyNanos == 0 ? nanos : LATENCY_SMOOTHING * nanos + (1 - LATENCY_SMOOTHING) * latencyNanos;
+    }
+
+    /**
+     * Signals that a batch handed out by this batcher has finished, successfully or not.
+     */
+    public void release() {
+        Batch ready = null;
+        synchronized (this) {
+            outstanding--;
+            if (outstanding == 0 && idleFlush && !batch.isEmpty()) {
+                ready = take(FlushReason.IDLE);
+            }
+        }
+        emit(ready);
+    }
+
+    /**
+     * Cancels the pending deadline flush and completes the batches, keys added afterwards are never emitted.
+     */
+    public void dispose() {
+        FluxSink<Batch> sink;
+        synchronized (this) {
+            if (pendingFlush != null) {
+                pendingFlush.dispose();
+                pendingFlush = null;
+            }
+            sink = downstream;
+            downstream = null;
+        }
+        if (sink != null) {
+            sink.complete();
+        }
+    }
+
+    synchronized int targetSize() {
+        double expectedArrivals = currentArrivalRate(System.nanoTime()) * targetWaitNanos();
+        return (int) Math.max(minSize, Math.min(maxSize, Math.ceil(expectedArrivals)));
+    }
+
+    synchronized long targetWaitNanos() {
+        return Math.max(minWaitNanos, Math.min(maxWaitNanos, latencyBudgetNanos - (long) latencyNanos));
+    }
+
+    private void scheduleFlush(long flushAt, long now) {
+        if (pendingFlush != null) {
+            pendingFlush.dispose();
+        }
+        long scheduledGeneration = generation;
+        scheduledFlushAt = flushAt;
+        pendingFlush = timer.schedule(() -> flushExpired(scheduledGeneration), flushAt - now, TimeUnit.NANOSECONDS);
+    }
+
+    private void flushExpired(long scheduledGeneration) {
+        Batch ready = null;
+        synchronized (this) {
+            if (scheduledGeneration == generation && !batch.isEmpty()) {
+                ready = take(FlushReason.DEADLINE);
+            }
+        }
+        emit(ready);
+    }
+
+    private Batch take(FlushReason reason) {
+        Batch ready = batch;
+        batch = new Batch(Math.min(maxSize, Math.max(minSize, ready.size())));
+        generation++;
+        outstanding++;
+        if (pendingFlush != null) {
+            pendingFlush.dispose();
+            pendingFlush = null;
+        }
+        switch (reason) {
+            case IDLE -> idleFlushes.increment();
+            case SIZE -> sizeFlushes.increment();
+            case DEADLINE -> deadlineFlushes.increment();
+        }
+        batchSizes.record(ready.size());
+        ready.flushedAt = System.nanoTime();
+        batchWait.record(ready.flushedAt - batchStartedAt, TimeUnit.NANOSECONDS);
+        flushEvent.api = api;
+        flushEvent.priority = priority;
+        flushEvent.shard = shard;
+        flushEvent.batchId = ready.id;
+        flushEvent.keys = ready.size();
+        flushEvent.reason = reason.name().toLowerCase(Locale.ROOT);
+        flushEvent.commit();
+        return ready;
+    }
+
+    private void emit(Batch ready) {
+        FluxSink<Batch> sink;
+        synchronized (this) {
+            sink = downstream;
+        }
+        if (ready != null && sink != null) {
+            sink.next(ready);
+        }
+    }
+
+    private void updateArrivalRate(long now) {
+        arrivalRate = currentArrivalRate(now) + 1 / rateWindowNanos;
+        arrivalRateUpdatedAt = now;
+    }
+
+    /**
+     * Exponentially decaying count of arrivals, in keys per nanosecond.
+     */
+    private double currentArrivalRate(long now) {
+        return arrivalRate * Math.exp(-(now - arrivalRateUpdatedAt) / rateWindowNanos);
+    }
+
+    private static Counter flushCounter(Tags tags, FlushReason reason, MeterRegistry meterRegistry) {
+        return Counter.builder("aggregation.batch.flush")
+                .tags(tags)
+                .tag("reason", reason.name().toLowerCase(Locale.ROOT))
+                .register(meterRegistry);
+    }
+
+    /**
+     * Keys flushed together, with the id of the batch, the moment, in {@link System#nanoTime()} terms, it was
+     * flushed and the earliest deadline of its keys.
+     */
+    public static final class Batch extends ArrayList<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final long id = BATCH_IDS.incrementAndGet();
+        private long flushedAt;
+        private long deadlineNanos = NO_DEADLINE;
+
+        Batch(int capacity) {
+            super(capacity);
+        }
+
+        public long id() {
+            return id;
+        }
+
+        public long flushedAt() {
+            return flushedAt;
+        }
+
+        /**
+         * @return the earliest deadline of the keys, {@link #NO_DEADLINE} if none of them has one
+         */
+        public long deadlineNanos() {
+            return deadlineNanos;
+        }
+
+        private void expectDeadline(long keyDeadlineNanos) {
+            if (keyDeadlineNanos != NO_DEADLINE && (deadlineNanos == NO_DEADLINE || keyDeadlineNanos - deadlineNanos < 0)) {
+                deadlineNanos = keyDeadlineNanos;
+            }
+        }
+    }
+}
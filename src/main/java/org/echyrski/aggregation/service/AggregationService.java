@@ -1,131 +1,179 @@
 package org.echyrski.aggregation.service;
 
 import java.time.Duration;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.TimeoutException;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
+import java.util.Set;
 
+import org.echyrski.aggregation.config.AggregationProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.ParameterizedTypeReference;
-import org.springframework.util.CollectionUtils;
 import org.springframework.web.reactive.function.client.WebClient;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.publisher.Sinks;
-import reactor.core.scheduler.Schedulers;
-import reactor.util.function.Tuple2;
-import reactor.util.function.Tuples;
 
+/**
+ * Registry of the backend APIs declared in {@code aggregation.apis}, each served by its own {@link ApiPipeline}.
+ * Only the APIs a request asks for do any work. In cluster mode ({@code aggregation.cluster}) the replicas share a
+ * consistent-hash ring deciding which of them batches every key of an API.
+ */
 public class AggregationService {
     private static final Logger LOGGER = LoggerFactory.getLogger(AggregationService.class);
-    private static final int AGGREGATION_TIMEOUT_SEC = 5;
-    private static final int AGGREGATE_REQUESTS = 5;
-    private static final int RETRY_COUNT = 5;
-    private static final int BATCH_PROCESSING_PARALLELISM = 500;
-    private static final Duration RESPONSE_SLA = Duration.ofSeconds(10);
 
-    private final WebClient webClient;
     private final String baseUrl;
-
-    private final Sinks.Many<Tuple2<String, ResponseCollector<Double>>> pricingSink = Sinks.many().multicast().onBackpressureBuffer();
-    private final Sinks.Many<Tuple2<String, ResponseCollector<String>>> trackSink = Sinks.many().multicast().onBackpressureBuffer();
-    private final Sinks.Many<Tuple2<String, ResponseCollector<List<String>>>> shipmentsSink = Sinks.many().multicast().onBackpressureBuffer();
-
-    private final ReentrantLock pricingSinkLock = new ReentrantLock();
-    private final ReentrantLock trackSinkLock = new ReentrantLock();
-    private final ReentrantLock shipmentsSinkLock = new ReentrantLock();
-
-    public AggregationService(WebClient.Builder webClientBuilder, String baseUrl) {
-        this.webClient = webClientBuilder.baseUrl(baseUrl).build();
+    private final Map<String, ApiPipeline> pipelines = new LinkedHashMap<>();
+    private final ClusterRing ring;
+
+    private final double shedThreshold;
+    private final Counter shedRequests;
+    private final Duration defaultDeadline;
+    private final Duration maxDeadline;
+    private final int maxBatchQueries;
+    private final int maxBatchKeys;
+
+    /**
+     * @param objectMapper binds the backend answers to the configured types of the APIs
+     */
+    public AggregationService(WebClient.Builder webClientBuilder, String baseUrl, AggregationProperties properties, ObjectMapper objectMapper,
+                              MeterRegistry meterRegistry) {
+        WebClient webClient = webClientBuilder.baseUrl(baseUrl).build();
         this.baseUrl = baseUrl;
+        this.ring = new ClusterRing(properties.getCluster());
+        properties.getApis().forEach((name, api) -> pipelines.put(name, new ApiPipeline(name, api, ring, webClient, objectMapper, meterRegistry)));
+        this.shedThreshold = properties.getShedThreshold();
+        this.shedRequests = meterRegistry.counter("aggregation.requests.shed");
+        this.defaultDeadline = properties.getDeadline();
+        this.maxDeadline = properties.getMaxDeadline();
+        this.maxBatchQueries = properties.getMaxBatchQueries();
+        this.maxBatchKeys = properties.getMaxBatchKeys();
     }
 
     @PostConstruct
     public void init() {
-        LOGGER.info("Initializing aggregation service to consume from {}", baseUrl);
-        startSinkProcessing(pricingSink, "/pricing?q={queries}", new ParameterizedTypeReference<>() {
-        });
-        startSinkProcessing(trackSink, "/track?q={queries}", new ParameterizedTypeReference<>() {
-        });
-        startSinkProcessing(shipmentsSink, "/shipments?q={queries}", new ParameterizedTypeReference<>() {
-        });
+        LOGGER.info("Initializing aggregation service to consume {} from {}", pipelines.keySet(), baseUrl);
+        if (!ring.peers().isEmpty()) {
+            LOGGER.info("Sharing batches with the replicas {}", ring.peers());
+        }
+        pipelines.values().forEach(ApiPipeline::start);
     }
 
-
-    public Mono<Map<String, Optional<List<String>>>> submitShipmentRequest(List<String> data) {
-        return submitRequest(data, shipmentsSink, shipmentsSinkLock);
+    /**
+     * Stops the pipelines of every API, requests still in flight resolve at their deadline.
+     */
+    @PreDestroy
+    public void dispose() {
+        pipelines.values().forEach(ApiPipeline::dispose);
     }
 
-    public Mono<Map<String, Optional<String>>> submitTrackRequest(List<String> tracks) {
-        return submitRequest(tracks, trackSink, trackSinkLock);
+    /**
+     * @return the names of the registered APIs, in the order they are declared
+     */
+    public Set<String> apis() {
+        return pipelines.keySet();
     }
 
-    public Mono<Map<String, Optional<Double>>> submitPricingRequest(List<String> pricing) {
-        return submitRequest(pricing, pricingSink, pricingSinkLock);
+    /**
+     * @return whether cluster mode is on and other replicas may forward keys to this one
+     */
+    public boolean isClustered() {
+        return ring.isEnabled();
     }
 
-    private <T> Mono<Map<String, Optional<T>>> submitRequest(List<String> data, Sinks.Many<Tuple2<String, ResponseCollector<T>>> sink, ReentrantLock lock) {
-        if (CollectionUtils.isEmpty(data)) {
-            return Mono.just(Map.of());
+    /**
+     * Deadline of a request, the requested one capped by the configured maximum or the default if none was asked for.
+     */
+    public Duration deadline(Long requestedMillis) {
+        if (requestedMillis == null || requestedMillis <= 0) {
+            return defaultDeadline;
         }
-        ResponseCollector<T> request = new ResponseCollector<>(data.size());
-        lock.lock();
-        try {
-            for (String elem : data) {
-                Sinks.EmitResult res = sink.tryEmitNext(Tuples.of(elem, request));
-                if (res != Sinks.EmitResult.OK) {
-                    LOGGER.error("Enable to emit into requesting sink: {} {}", elem, res);
-                    request.submit(Tuples.of(elem, Optional.empty()));
-                }
+        Duration requested = Duration.ofMillis(requestedMillis);
+        return requested.compareTo(maxDeadline) > 0 ? maxDeadline : requested;
+    }
+
+    /**
+     * Whether a batch request is larger than {@code aggregation.max-batch-queries} or {@code max-batch-keys} allow.
+     *
+     * @param keys keys over all queries of the request
+     */
+    public boolean exceedsBatchLimits(int queries, int keys) {
+        return queries > maxBatchQueries || keys > maxBatchKeys;
+    }
+
+    /**
+     * Whether the request should be shed because the ingestion queue lane of an API it needs is close to full.
+     *
+     * @param keys     keys of the request by API
+     * @param priority lane of the request, null for the default lane of every API
+     */
+    public boolean isSaturated(Map<String, List<String>> keys, Priority priority) {
+        for (Map.Entry<String, List<String>> apiKeys : keys.entrySet()) {
+            if (pipeline(apiKeys.getKey()).isSaturated(apiKeys.getValue(), priority, shedThreshold)) {
+                shedRequests.increment();
+                return true;
             }
-        } finally {
-            lock.unlock();
         }
-        return request.asFlux()
-                .collectMap(Tuple2::getT1, Tuple2::getT2)
-                .onErrorResume(throwable -> Mono.just(data.stream().collect(Collectors.toMap(e -> e, e -> Optional.empty()))));
+        return false;
+    }
+
+    /**
+     * Opens pooled backend connections with concurrent calls for a made-up key, taking the APIs in turn. Failed calls
+     * are ignored.
+     */
+    public Mono<Void> openConnections(int connections) {
+        List<ApiPipeline> apis = List.copyOf(pipelines.values());
+        if (apis.isEmpty() || connections <= 0) {
+            return Mono.empty();
+        }
+        return Flux.range(0, connections)
+                .flatMap(call -> apis.get(call % apis.size()).probe(), connections)
+                .then();
     }
 
-    private <T> void startSinkProcessing(Sinks.Many<Tuple2<String, ResponseCollector<T>>> sink, String uriTemplate, ParameterizedTypeReference<Map<String, T>> responseType) {
-        sink.asFlux()
-                .bufferTimeout(AGGREGATE_REQUESTS, Duration.ofSeconds(AGGREGATION_TIMEOUT_SEC))
-                .filter(batch -> !batch.isEmpty())
-                .parallel(BATCH_PROCESSING_PARALLELISM).runOn(Schedulers.newParallel(uriTemplate))
-
-                .flatMap(batch -> {
-                    List<Tuple2<String, ResponseCollector<T>>> requests = List.copyOf(batch);
-                    String queries = requests.stream().map(Tuple2::getT1).distinct().collect(Collectors.joining(","));
-                    LOGGER.debug("Starting aggregation processing for {}", queries);
-                    return webClient.get()
-                            .uri(uriTemplate, queries)
-                            .retrieve()
-                            .bodyToMono(responseType)
-                            .retry(RETRY_COUNT)
-                            .timeout(RESPONSE_SLA)
-                            .onErrorResume(TimeoutException.class, this::processTimeout)
-                            .onErrorResume(this::processThrowable)
-                            .doOnNext(response -> requests.forEach(request -> processResponse(request.getT1(), response, request.getT2())));
-                })
-                .subscribe();
+    public Mono<Map<String, Optional<Object>>> submitRequest(String api, List<String> keys) {
+        return submitRequest(api, keys, defaultDeadline, null);
     }
 
+    /**
+     * @param priority lane the keys are batched in, null for the default lane of the API
+     */
+    public Mono<Map<String, Optional<Object>>> submitRequest(String api, List<String> keys, Duration deadline, Priority priority) {
+        return pipeline(api).submit(keys, deadline, priority);
+    }
+
+    /**
+     * Answers keys another replica forwarded to this one as their owner, they are batched here whatever the ring says
+     * so that replicas disagreeing on the peers cannot forward keys in a loop. Keys not answered by the deadline are
+     * left out of the answers, so that the forwarding replica does not take them for empty ones.
+     */
+    public Mono<Map<String, Optional<Object>>> submitForwardedRequest(String api, List<String> keys, Duration deadline, Priority priority) {
+        return pipeline(api).submitForwarded(keys, deadline, priority);
+    }
 
-    private <T> void processResponse(String request, Map<String, T> response, ResponseCollector<T> responseCollector) {
-        responseCollector.submit(Tuples.of(request, Optional.ofNullable(response.get(request))));
+    public Flux<Map.Entry<String, Optional<Object>>> streamRequest(String api, List<String> keys) {
+        return streamRequest(api, keys, defaultDeadline, null);
     }
 
-    private <T> Mono<Map<String, T>> processTimeout(Throwable error) {
-        LOGGER.warn("Timed out while awaiting from the response from downstream service.");
-        return Mono.just(Map.of());
+    /**
+     * @param priority lane the keys are batched in, null for the default lane of the API
+     */
+    public Flux<Map.Entry<String, Optional<Object>>> streamRequest(String api, List<String> keys, Duration deadline, Priority priority) {
+        return pipeline(api).stream(keys, deadline, priority);
     }
 
-    private <T> Mono<Map<String, T>> processThrowable(Throwable error) {
-        LOGGER.error(error.getMessage(), error);
-        return Mono.just(Map.of());
+    private ApiPipeline pipeline(String api) {
+        ApiPipeline pipeline = pipelines.get(api);
+        if (pipeline == null) {
+            throw new IllegalArgumentException("Unknown API " + api);
+        }
+        return pipeline;
     }
 }
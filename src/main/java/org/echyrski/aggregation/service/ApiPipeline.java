@@ -0,0 +1,529 @@
+package org.echyrski.aggregation.service;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.echyrski.aggregation.config.AggregationProperties;
+import org.echyrski.aggregation.controller.AggregationController;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.util.CollectionUtils;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Everything between the requests for the keys of one backend API and its downstream calls: cache, single-flight,
+ * ingestion queue and batchers per priority lane, retries, hedging and the circuit breaker. Answers are typed by the
+ * configured response type and handed out as plain objects.
+ * <p>
+ * The keys are hash partitioned over shards, each with its own ingestion queue, batchers and dispatch, so batches of
+ * one API are assembled on several cores at once. A key always lands in the same shard.
+ * <p>
+ * In cluster mode the keys owned by another replica go to a forwarding shard of that replica instead, whose batches
+ * are sent to its internal endpoint, so the owner batches the key for the whole cluster. Keys forwarded to this
+ * replica are always batched locally.
+ * <p>
+ * Every stage emits Flight Recorder events tied together by the batch id, and a {@link RequestTimings} in the
+ * subscriber context of a request gets the breakdown of the API.
+ */
+class ApiPipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ApiPipeline.class);
+
+    private final String name;
+    private final AggregationProperties.Api properties;
+    private final WebClient webClient;
+    private final InFlightRequests<Object> inFlight = new InFlightRequests<>();
+    private final ResponseCache<Object> cache;
+    private final Shard[] shards;
+    private final ClusterRing ring;
+    private final Map<String, Shard> forwarding = new LinkedHashMap<>();
+    private final RetryPolicy retry;
+    private final HedgingPolicy hedging;
+    private final CircuitBreaker circuit;
+    private final PipelineMetrics metrics;
+    private final BatchResponseDecoder<Object> decoder;
+    private final Disposable.Composite dispatching = Disposables.composite();
+
+    ApiPipeline(String name, AggregationProperties.Api properties, ClusterRing ring, WebClient webClient, ObjectMapper objectMapper,
+                MeterRegistry meterRegistry) {
+        if (properties.getPath() == null) {
+            throw new IllegalArgumentException("API " + name + " has no path");
+        }
+        this.name = name;
+        this.properties = properties;
+        this.webClient = webClient;
+        this.cache = new ResponseCache<>(name, properties.getCache(), meterRegistry);
+        int shardCount = properties.getShards() > 0 ? properties.getShards() : Runtime.getRuntime().availableProcessors();
+        this.shards = new Shard[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            shards[shard] = new Shard(name, shard, shardCount, properties, meterRegistry);
+        }
+        this.ring = ring;
+        // Forwarding shards follow the local ones in the shard tag of the batcher meters
+        for (String peer : ring.peers()) {
+            forwarding.put(peer, new Shard(name, shardCount + forwarding.size(), shardCount, properties, meterRegistry));
+        }
+        this.retry = new RetryPolicy(name, properties.getRetry(), meterRegistry);
+        this.hedging = new HedgingPolicy(name, properties.getHedging(), meterRegistry);
+        this.circuit = new CircuitBreaker(name, properties.getCircuitBreaker(), meterRegistry);
+        this.metrics = new PipelineMetrics(name, priority -> size(priority.ordinal()), meterRegistry);
+        this.decoder = new BatchResponseDecoder<>(objectMapper, objectMapper.getTypeFactory().constructFromCanonical(properties.getType()));
+    }
+
+    void start() {
+        // Every lane dispatches its batches with its own permits, so bulk calls cannot take those of interactive ones
+        for (Shard shard : shards) {
+            for (Priority priority : Priority.values()) {
+                dispatch(shard.batchers[priority.ordinal()], priority, share(properties.getBatching(priority).getMaxConcurrency(), shards.length));
+            }
+        }
+        forwarding.forEach((peer, shard) -> {
+            for (Priority priority : Priority.values()) {
+                forward(peer, shard.batchers[priority.ordinal()], priority, share(properties.getBatching(priority).getMaxConcurrency(), shards.length));
+            }
+        });
+    }
+
+    /**
+     * Stops dispatching and releases the timers and drain workers of the shards. Keys still queued or batched are not
+     * sent, requests waiting for them resolve at their deadline.
+     */
+    void dispose() {
+        dispatching.dispose();
+        for (Shard shard : shards) {
+            shard.dispose();
+        }
+        forwarding.values().forEach(Shard::dispose);
+    }
+
+    /**
+     * Backend call for a made-up key whose answer is dropped, opening a pooled connection without going through the
+     * cache, the circuit breaker or the metrics.
+     */
+    Mono<Void> probe() {
+        return webClient.get()
+                .uri(properties.getPath(), "warmup")
+                .retrieve()
+                .toBodilessEntity()
+                .then()
+                .onErrorResume(error -> Mono.empty());
+    }
+
+    /**
+     * A lane without capacity is never saturated, its keys resolve to empty right away instead of being shed.
+     *
+     * @param priority lane of the request, null for the default lane of the API
+     */
+    boolean isSaturated(List<String> keys, Priority priority, double threshold) {
+        int lane = lane(priority).ordinal();
+        int capacity = capacity(lane);
+        return !CollectionUtils.isEmpty(keys) && capacity > 0 && size(lane) >= threshold * capacity;
+    }
+
+    private int size(int lane) {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.queue.size(lane);
+        }
+        for (Shard shard : forwarding.values()) {
+            size += shard.queue.size(lane);
+        }
+        return size;
+    }
+
+    private int capacity(int lane) {
+        int capacity = 0;
+        for (Shard shard : shards) {
+            capacity += shard.queue.capacity(lane);
+        }
+        for (Shard shard : forwarding.values()) {
+            capacity += shard.queue.capacity(lane);
+        }
+        return capacity;
+    }
+
+    private Shard shard(String key) {
+        int hash = key.hashCode();
+        return shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)];
+    }
+
+    /**
+     * Shard of the replica owning the key, the local one while the owner is this replica or unavailable.
+     */
+    private Shard route(String key) {
+        String owner = ring.owner(name, key);
+        if (owner == null || !ring.isAvailable(owner)) {
+            return shard(key);
+        }
+        return forwarding.get(owner);
+    }
+
+    Mono<Map<String, Optional<Object>>> submit(List<String> data, Duration deadline, Priority priority) {
+        return submit(data, deadline, priority, true);
+    }
+
+    /**
+     * Answers keys another replica forwarded to this one as their owner, batching them locally. Keys not answered
+     * by the deadline are left out of the answers.
+     */
+    Mono<Map<String, Optional<Object>>> submitForwarded(List<String> data, Duration deadline, Priority priority) {
+        return submit(data, deadline, priority, false);
+    }
+
+    private Mono<Map<String, Optional<Object>>> submit(List<String> data, Duration deadline, Priority priority, boolean route) {
+        if (CollectionUtils.isEmpty(data)) {
+            return Mono.just(Map.of());
+        }
+        Priority lane = lane(priority);
+        RequestEvent event = new RequestEvent();
+        event.begin();
+        long startedAt = System.nanoTime();
+        ResponseCollector<Object> request = new ResponseCollector<>(data);
+        Disposable expiry = collect(request, deadline, lane, route);
+        // Keys forwarded to this replica that ran out of time are left out rather than answered as empty, the
+        // forwarding replica batches them itself
+        Mono<Map<String, Optional<Object>>> result = route ? request.asMono() : request.asMono().map(done -> request.answered());
+        // Recorded before the answers are passed on, so the timings are complete when the response is committed
+        return result
+                .transformDeferredContextual((answers, context) -> answers.doOnSuccess(done -> context.getOrEmpty(RequestTimings.class)
+                        .ifPresent(timings -> ((RequestTimings) timings).record(name, timing(request, startedAt)))))
+                .doFinally(signal -> complete(signal, startedAt, lane, request, expiry, event));
+    }
+
+    Flux<Map.Entry<String, Optional<Object>>> stream(List<String> data, Duration deadline, Priority priority) {
+        if (CollectionUtils.isEmpty(data)) {
+            return Flux.empty();
+        }
+        Priority lane = lane(priority);
+        RequestEvent event = new RequestEvent();
+        event.begin();
+        long startedAt = System.nanoTime();
+        ResponseCollector<Object> request = new ResponseCollector<>(data, true);
+        Disposable expiry = collect(request, deadline, lane, true);
+        return request.asFlux().doFinally(signal -> complete(signal, startedAt, lane, request, expiry, event));
+    }
+
+    private Priority lane(Priority requested) {
+        return requested != null ? requested : properties.getPriority();
+    }
+
+    private void complete(SignalType signal, long startedAt, Priority priority, ResponseCollector<Object> request, Disposable expiry,
+                          RequestEvent event) {
+        expiry.dispose();
+        if (signal != SignalType.CANCEL) {
+            metrics.recordRequest(startedAt, priority);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            RequestTimings.Timing timing = timing(request, startedAt);
+            event.api = name;
+            event.priority = priority.name().toLowerCase(Locale.ROOT);
+            event.keys = request.size();
+            event.wait = timing.waitNanos();
+            event.downstream = timing.downstreamNanos();
+            event.expired = request.isExpired();
+            event.commit();
+        }
+    }
+
+    /**
+     * Splits the time of a request at the dispatch of the batch that answered its last key: before it the key
+     * waited in the ingestion queue, the batcher and for a permit, after it the batch was downstream.
+     */
+    private static RequestTimings.Timing timing(ResponseCollector<Object> request, long startedAt) {
+        long now = System.nanoTime();
+        long dispatchedAt = request.lastDispatchedAt();
+        if (dispatchedAt == 0) {
+            return new RequestTimings.Timing(0, 0, now - startedAt);
+        }
+        // A key joining a batch already in flight waited for nothing
+        long downstreamFrom = Math.max(dispatchedAt, startedAt);
+        return new RequestTimings.Timing(downstreamFrom - startedAt, now - downstreamFrom, now - startedAt);
+    }
+
+    /**
+     * Resolves the keys of the request from the cache, as empty while the circuit of the API is open, or schedules
+     * their fetch, and expires the request once its deadline passes so the keys still unanswered by then come back
+     * empty.
+     *
+     * @param route whether keys owned by another replica are forwarded to it
+     */
+    private Disposable collect(ResponseCollector<Object> request, Duration deadline, Priority priority, boolean route) {
+        long deadlineNanos = System.nanoTime() + deadline.toNanos();
+        for (int slot = 0; slot < request.size(); slot++) {
+            String elem = request.key(slot);
+            Optional<Object> cached = cache.get(elem);
+            if (cached != null) {
+                request.submit(elem, cached.orElse(null));
+                continue;
+            }
+            if (!circuit.isCallPermitted()) {
+                request.submit(elem, null);
+                continue;
+            }
+            if (!inFlight.attach(elem, request, priority.ordinal())) {
+                continue;
+            }
+            enqueue(elem, deadlineNanos, priority, route ? route(elem) : shard(elem));
+        }
+        if (request.isComplete()) {
+            return Disposables.disposed();
+        }
+        return Schedulers.parallel().schedule(request::expire, deadline.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    private void enqueue(String key, long deadlineNanos, Priority priority, Shard shard) {
+        IngestionQueue<PendingKey> queue = shard.queue;
+        if (!queue.offer(new PendingKey(key, deadlineNanos, priority), priority.ordinal())) {
+            LOGGER.warn("Ingestion queue of {} {} keys is full ({} keys), failing key {}", priority, name, queue.capacity(priority.ordinal()), key);
+            inFlight.complete(key, null);
+        }
+    }
+
+    private void dispatch(AdaptiveBatcher batcher, Priority priority, int maxConcurrency) {
+        // Batches are assembled on the thread that flushed them and the calls complete on the Netty event loops,
+        // the number of calls in flight is capped by permits instead of by dedicated threads
+        dispatching.add(batcher.batches()
+                .flatMap(batch -> {
+                    BatchDispatchEvent event = dispatchEvent(batch, priority, null);
+                    List<String> requests = batch.stream().distinct().toList();
+                    CircuitBreaker.Permit permit = circuit.tryAcquire();
+                    if (permit == CircuitBreaker.Permit.DENIED) {
+                        LOGGER.debug("Circuit of {} is open, failing {} keys", name, requests.size());
+                        requests.forEach(request -> inFlight.complete(request, null));
+                        batcher.release();
+                        commit(event, "circuit_open");
+                        return Mono.empty();
+                    }
+                    long startedAt = System.nanoTime();
+                    // Keys are answered as their fields are parsed, whatever is left once the body ends has no answer
+                    Set<String> pending = ConcurrentHashMap.newKeySet(requests.size());
+                    pending.addAll(requests);
+                    // An attempt asks for the keys still pending, split into calls within the URL budget and sent
+                    // at once. Retries and hedges parse into the same pending keys, every key is answered by
+                    // whichever call has it first.
+                    Mono<Void> attempt = Mono.defer(() -> Flux.fromIterable(QuerySplitter.split(pending, properties.getMaxQueryBytes()))
+                            .flatMap(keys -> call(keys, pending, batch.id(), startedAt))
+                            .then());
+                    return hedging.hedge(attempt)
+                            .retryWhen(retry.onCall())
+                            .timeout(properties.getTimeout())
+                            .doOnSuccess(done -> batcher.recordLatency(System.nanoTime() - startedAt))
+                            .doOnSuccess(done -> circuit.onSuccess(permit, System.nanoTime() - startedAt))
+                            .doOnSuccess(done -> metrics.recordDownstream(startedAt, PipelineMetrics.Outcome.SUCCESS))
+                            .doOnSuccess(done -> event.outcome = "success")
+                            .doOnError(error -> circuit.onFailure(permit, System.nanoTime() - startedAt))
+                            .doOnError(error -> metrics.recordDownstream(startedAt, error instanceof TimeoutException
+                                    ? PipelineMetrics.Outcome.TIMEOUT : PipelineMetrics.Outcome.ERROR))
+                            .doOnError(error -> event.outcome = error instanceof TimeoutException ? "timeout" : "error")
+                            .doOnSuccess(done -> pending.forEach(request -> processResponse(request, null, startedAt)))
+                            .onErrorResume(TimeoutException.class, error -> processTimeout(pending, startedAt))
+                            .onErrorResume(error -> processThrowable(error, pending, startedAt))
+                            .doFinally(signal -> batcher.release())
+                            .doFinally(signal -> commit(event, event.outcome));
+                }, maxConcurrency)
+                .subscribe());
+    }
+
+    private Mono<Void> call(List<String> keys, Set<String> pending, long batchId, long dispatchedAt) {
+        String queries = String.join(",", keys);
+        LOGGER.debug("Starting aggregation processing for {}", queries);
+        DownstreamCallEvent event = new DownstreamCallEvent();
+        event.begin();
+        return webClient.get()
+                .uri(properties.getPath(), queries)
+                .retrieve()
+                .bodyToFlux(DataBuffer.class)
+                .transform(decoder::decode)
+                .doOnNext(field -> {
+                    if (pending.remove(field.getKey())) {
+                        event.answered++;
+                        processResponse(field.getKey(), field.getValue(), dispatchedAt);
+                    }
+                })
+                .then()
+                .doFinally(signal -> {
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.api = name;
+                        event.batchId = batchId;
+                        event.keys = keys.size();
+                        event.outcome = outcome(signal);
+                        event.commit();
+                    }
+                });
+    }
+
+    /**
+     * Sends the batches of a forwarding shard to the replica owning their keys, with the time left until the earliest
+     * deadline of the batch. The owner caches the answers and leaves out the keys it ran out of time for, those are
+     * batched locally like the keys of a batch the owner fails, which is then skipped for the retry interval. The
+     * owner is waited for up to its deadline plus the margin of the cluster, so a slow backend does not make it look
+     * failed.
+     */
+    private void forward(String peer, AdaptiveBatcher batcher, Priority priority, int maxConcurrency) {
+        dispatching.add(batcher.batches()
+                .flatMap(batch -> {
+                    BatchDispatchEvent event = dispatchEvent(batch, priority, peer);
+                    List<String> requests = batch.stream().distinct().toList();
+                    metrics.recordForwarded(requests.size());
+                    long startedAt = System.nanoTime();
+                    Set<String> pending = ConcurrentHashMap.newKeySet(requests.size());
+                    pending.addAll(requests);
+                    long deadlineMillis = ownerDeadlineMillis(batch, startedAt);
+                    return Mono.defer(() -> webClient.post()
+                                    .uri(peer + ClusterRing.FORWARD_PATH, name)
+                                    .header(AggregationController.DEADLINE_HEADER, String.valueOf(deadlineMillis))
+                                    .header(AggregationController.PRIORITY_HEADER, priority.name().toLowerCase(Locale.ROOT))
+                                    .bodyValue(requests)
+                                    .retrieve()
+                                    .bodyToFlux(DataBuffer.class)
+                                    .transform(decoder::decode)
+                                    .doOnNext(field -> {
+                                        if (pending.remove(field.getKey())) {
+                                            inFlight.complete(field.getKey(), field.getValue(), startedAt);
+                                        }
+                                    })
+                                    .then())
+                            .timeout(Duration.ofMillis(deadlineMillis).plus(ring.margin()))
+                            .doOnSuccess(done -> batcher.recordLatency(System.nanoTime() - startedAt))
+                            .doOnSuccess(done -> event.outcome = "success")
+                            .doOnSuccess(done -> batchLocally(pending, priority))
+                            .doOnError(error -> event.outcome = "fallback")
+                            .onErrorResume(error -> fallback(peer, error, pending, priority))
+                            .doFinally(signal -> batcher.release())
+                            .doFinally(signal -> commit(event, event.outcome));
+                }, maxConcurrency)
+                .subscribe());
+    }
+
+    private Mono<Void> fallback(String peer, Throwable error, Collection<String> requests, Priority priority) {
+        if (requests.isEmpty()) {
+            // Every key was answered before the response failed
+            return Mono.empty();
+        }
+        LOGGER.warn("Forwarding {} keys of {} to {} failed, batching them locally: {}", requests.size(), name, peer, error.toString());
+        ring.markUnavailable(peer);
+        batchLocally(requests, priority);
+        return Mono.empty();
+    }
+
+    private void batchLocally(Collection<String> requests, Priority priority) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        metrics.recordFallback(requests.size());
+        requests.forEach(request -> enqueue(request, AdaptiveBatcher.NO_DEADLINE, priority, shard(request)));
+    }
+
+    /**
+     * Deadline the owner is given for a forwarded batch, the time left until the earliest deadline of its keys, at
+     * least a millisecond, or the timeout of the API if none of them has one.
+     */
+    private long ownerDeadlineMillis(AdaptiveBatcher.Batch batch, long now) {
+        if (batch.deadlineNanos() == AdaptiveBatcher.NO_DEADLINE) {
+            return properties.getTimeout().toMillis();
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(batch.deadlineNanos() - now));
+    }
+
+    private void processResponse(String request, Object value, long dispatchedAt) {
+        cache.put(request, value);
+        inFlight.complete(request, value, dispatchedAt);
+    }
+
+    private Mono<Void> processTimeout(Collection<String> requests, long dispatchedAt) {
+        LOGGER.warn("Timed out while awaiting from the response from downstream service {}.", name);
+        requests.forEach(request -> inFlight.complete(request, null, dispatchedAt));
+        return Mono.empty();
+    }
+
+    private Mono<Void> processThrowable(Throwable error, Collection<String> requests, long dispatchedAt) {
+        LOGGER.error(error.getMessage(), error);
+        requests.forEach(request -> inFlight.complete(request, null, dispatchedAt));
+        return Mono.empty();
+    }
+
+    /**
+     * Starts the event of a batch taken for dispatch, the time since its flush was spent waiting for a permit.
+     *
+     * @param peer replica the batch is forwarded to, null for the backend
+     */
+    private BatchDispatchEvent dispatchEvent(AdaptiveBatcher.Batch batch, Priority priority, String peer) {
+        BatchDispatchEvent event = new BatchDispatchEvent();
+        event.begin();
+        event.api = name;
+        event.priority = priority.name().toLowerCase(Locale.ROOT);
+        event.batchId = batch.id();
+        event.keys = batch.size();
+        event.permitWait = System.nanoTime() - batch.flushedAt();
+        event.peer = peer;
+        return event;
+    }
+
+    private static void commit(BatchDispatchEvent event, String outcome) {
+        event.outcome = outcome;
+        event.commit();
+    }
+
+    private static String outcome(SignalType signal) {
+        return switch (signal) {
+            case ON_COMPLETE -> "success";
+            case CANCEL -> "cancelled";
+            default -> "error";
+        };
+    }
+
+    /**
+     * Share of one shard in a limit of the API, at least one.
+     */
+    private static int share(int limit, int shards) {
+        return Math.max(1, (limit + shards - 1) / shards);
+    }
+
+    /**
+     * Ingestion queue with one lane per priority, in priority order, feeding the batcher of the lane.
+     */
+    private static final class Shard {
+        private final AdaptiveBatcher[] batchers = new AdaptiveBatcher[Priority.values().length];
+        private final IngestionQueue<PendingKey> queue;
+
+        Shard(String api, int index, int shards, AggregationProperties.Api properties, MeterRegistry meterRegistry) {
+            int[] capacities = new int[batchers.length];
+            for (Priority priority : Priority.values()) {
+                batchers[priority.ordinal()] = new AdaptiveBatcher(api, priority, index, properties.getBatching(priority), meterRegistry);
+                int capacity = properties.getBatching(priority).getQueueCapacity();
+                capacities[priority.ordinal()] = capacity == 0 ? 0 : share(capacity, shards);
+            }
+            // Every shard drains on its own worker of the parallel scheduler
+            this.queue = new IngestionQueue<>(capacities, key -> batchers[key.priority().ordinal()].add(key), Schedulers.parallel());
+        }
+
+        void dispose() {
+            queue.dispose();
+            for (AdaptiveBatcher batcher : batchers) {
+                batcher.dispose();
+            }
+        }
+    }
+}
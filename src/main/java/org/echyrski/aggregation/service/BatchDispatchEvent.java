@@ -0,0 +1,45 @@
+package org.echyrski.aggregation.service;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Downstream lifecycle of one flushed batch, from being dispatched to its last key being answered, retries, hedges
+ * and forwarding to another replica included.
+ */
+@Name("org.echyrski.aggregation.BatchDispatch")
+@Label("Batch Dispatch")
+@Category({"Aggregation", "Batching"})
+@Description("A flushed batch being fetched downstream, retries and hedges included")
+@StackTrace(false)
+final class BatchDispatchEvent extends Event {
+
+    @Label("API")
+    String api;
+
+    @Label("Priority")
+    String priority;
+
+    @Label("Batch Id")
+    long batchId;
+
+    @Label("Keys")
+    int keys;
+
+    @Label("Permit Wait")
+    @Description("Time between the flush and the dispatch, spent waiting for a concurrency permit")
+    @Timespan(Timespan.NANOSECONDS)
+    long permitWait;
+
+    @Label("Peer")
+    @Description("Replica the batch was forwarded to, empty for calls to the backend")
+    String peer;
+
+    @Label("Outcome")
+    String outcome;
+}
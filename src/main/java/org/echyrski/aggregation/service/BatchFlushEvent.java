@@ -0,0 +1,37 @@
+package org.echyrski.aggregation.service;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Assembly of one batch, from its first key joining the batcher to the flush.
+ */
+@Name("org.echyrski.aggregation.BatchFlush")
+@Label("Batch Flush")
+@Category({"Aggregation", "Batching"})
+@Description("Keys gathered into a batch until it was flushed")
+@StackTrace(false)
+final class BatchFlushEvent extends Event {
+
+    @Label("API")
+    String api;
+
+    @Label("Priority")
+    String priority;
+
+    @Label("Shard")
+    int shard;
+
+    @Label("Batch Id")
+    long batchId;
+
+    @Label("Keys")
+    int keys;
+
+    @Label("Flush Reason")
+    String reason;
+}
@@ -0,0 +1,213 @@
+package org.echyrski.aggregation.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.core.codec.DecodingException;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteBufferFeeder;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import reactor.core.publisher.Flux;
+
+/**
+ * Decodes a backend batch response, a JSON object of key to answer, field by field as its bytes arrive. The body is
+ * fed to Jackson's non-blocking parser straight from the {@link DataBuffer}s and every field is emitted once its
+ * value is complete, without building a map of the whole response.
+ * <p>
+ * Text, numbers and lists of text, the answers of the backend APIs, are built straight from the tokens. Any other
+ * type is bound by Jackson, structured values after buffering their tokens until they close.
+ */
+public class BatchResponseDecoder<T> {
+
+    private enum Shape {
+        TEXT, NUMBER, TEXT_LIST, OTHER
+    }
+
+    private final ObjectMapper objectMapper;
+    private final ObjectReader reader;
+    private final Shape shape;
+
+    public BatchResponseDecoder(ObjectMapper objectMapper, JavaType valueType) {
+        this.objectMapper = objectMapper;
+        this.reader = objectMapper.readerFor(valueType);
+        this.shape = shapeOf(valueType);
+    }
+
+    private static Shape shapeOf(JavaType valueType) {
+        if (valueType.hasRawClass(String.class)) {
+            return Shape.TEXT;
+        }
+        if (valueType.hasRawClass(Double.class)) {
+            return Shape.NUMBER;
+        }
+        if (valueType.isCollectionLikeType() && valueType.getRawClass().isAssignableFrom(ArrayList.class)
+                && valueType.getContentType().hasRawClass(String.class)) {
+            return Shape.TEXT_LIST;
+        }
+        return Shape.OTHER;
+    }
+
+    /**
+     * @return the fields of the response in the order they are parsed, a JSON null is emitted as a null value
+     */
+    public Flux<Map.Entry<String, T>> decode(Flux<DataBuffer> body) {
+        return Flux.defer(() -> {
+            Session session = new Session();
+            return body
+                    .doOnDiscard(DataBuffer.class, DataBufferUtils::release)
+                    .concatMapIterable(session::feed)
+                    .concatWith(Flux.defer(() -> Flux.fromIterable(session.end())))
+                    .doFinally(signal -> session.close());
+        });
+    }
+
+    /**
+     * Parser state of one response body.
+     */
+    private class Session {
+
+        private final JsonParser parser;
+        private final ByteBufferFeeder feeder;
+        private int depth;
+        private String field;
+        private TokenBuffer tokens;
+        private List<String> texts;
+
+        Session() {
+            try {
+                this.parser = objectMapper.getFactory().createNonBlockingByteBufferParser();
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to create a non-blocking JSON parser", e);
+            }
+            this.feeder = (ByteBufferFeeder) parser.getNonBlockingInputFeeder();
+        }
+
+        List<Map.Entry<String, T>> feed(DataBuffer buffer) {
+            List<Map.Entry<String, T>> fields = new ArrayList<>();
+            try (DataBuffer.ByteBufferIterator chunks = buffer.readableByteBuffers()) {
+                while (chunks.hasNext()) {
+                    ByteBuffer chunk = chunks.next();
+                    feeder.feedInput(chunk);
+                    parse(fields);
+                }
+            } catch (IOException e) {
+                throw new DecodingException("Malformed backend response", e);
+            } finally {
+                DataBufferUtils.release(buffer);
+            }
+            return fields;
+        }
+
+        List<Map.Entry<String, T>> end() {
+            List<Map.Entry<String, T>> fields = new ArrayList<>();
+            feeder.endOfInput();
+            try {
+                parse(fields);
+            } catch (IOException e) {
+                throw new DecodingException("Malformed backend response", e);
+            }
+            if (depth != 0) {
+                throw new DecodingException("Backend response ended before the JSON object was closed");
+            }
+            return fields;
+        }
+
+        void close() {
+            try {
+                parser.close();
+            } catch (IOException ignored) {
+                // Nothing is left to read
+            }
+        }
+
+        private void parse(List<Map.Entry<String, T>> fields) throws IOException {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                if (depth == 0) {
+                    if (token != JsonToken.START_OBJECT) {
+                        throw new DecodingException("Backend response is not a JSON object: " + token);
+                    }
+                    depth = 1;
+                } else if (depth == 1) {
+                    parseField(token, fields);
+                } else {
+                    parseNested(token, fields);
+                }
+            }
+        }
+
+        private void parseField(JsonToken token, List<Map.Entry<String, T>> fields) throws IOException {
+            switch (token) {
+                case FIELD_NAME -> field = parser.currentName();
+                case END_OBJECT -> depth = 0;
+                case VALUE_NULL -> emit(null, fields);
+                case START_ARRAY, START_OBJECT -> {
+                    if (shape == Shape.TEXT_LIST && token == JsonToken.START_ARRAY) {
+                        texts = new ArrayList<>();
+                    } else {
+                        tokens = new TokenBuffer(parser);
+                        tokens.copyCurrentEvent(parser);
+                    }
+                    depth++;
+                }
+                default -> emit(scalar(token), fields);
+            }
+        }
+
+        private Object scalar(JsonToken token) throws IOException {
+            if (shape == Shape.TEXT) {
+                return parser.getText();
+            }
+            if (shape == Shape.NUMBER && token.isNumeric()) {
+                return parser.getDoubleValue();
+            }
+            return reader.readValue(parser);
+        }
+
+        private void parseNested(JsonToken token, List<Map.Entry<String, T>> fields) throws IOException {
+            if (texts != null) {
+                switch (token) {
+                    case END_ARRAY -> {
+                        depth--;
+                        emit(texts, fields);
+                        texts = null;
+                    }
+                    case VALUE_NULL -> texts.add(null);
+                    default -> {
+                        if (!token.isScalarValue()) {
+                            throw new DecodingException("Expected a list of text for " + field + " but got " + token);
+                        }
+                        texts.add(parser.getText());
+                    }
+                }
+                return;
+            }
+            tokens.copyCurrentEvent(parser);
+            if (token.isStructStart()) {
+                depth++;
+            } else if (token.isStructEnd() && --depth == 1) {
+                try (JsonParser value = tokens.asParser(objectMapper)) {
+                    emit(reader.readValue(value), fields);
+                }
+                tokens = null;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void emit(Object value, List<Map.Entry<String, T>> fields) {
+            fields.add(new AbstractMap.SimpleImmutableEntry<>(field, (T) value));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.echyrski.aggregation.service;
+
+import org.echyrski.aggregation.config.AggregationProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Circuit breaker of one downstream API over the outcomes of its last batch calls. The circuit opens when too many
+ * of them failed or were slow, stays open for a while and then lets a single probe through: the circuit closes
+ * again if the probe succeeds in time and reopens otherwise. Calls dispatched before the circuit opened may still
+ * complete while it is half open, only the outcome of the probe decides.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Outcome of {@link #tryAcquire()}, handed back with the outcome of the call.
+     */
+    public enum Permit {
+        DENIED, CALL, PROBE
+    }
+
+    private final String api;
+    private final double failureRateThreshold;
+    private final double slowCallRateThreshold;
+    private final long slowCallNanos;
+    private final int minimumCalls;
+    private final long openNanos;
+
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int next;
+    private int recorded;
+    private int failures;
+    private int slowCalls;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probing;
+
+    public CircuitBreaker(String api, AggregationProperties.CircuitBreaker properties, MeterRegistry meterRegistry) {
+        this.api = api;
+        this.failureRateThreshold = properties.getFailureRateThreshold();
+        this.slowCallRateThreshold = properties.getSlowCallRateThreshold();
+        this.slowCallNanos = properties.getSlowCallDuration().toNanos();
+        this.failed = new boolean[Math.max(1, properties.getWindowSize())];
+        this.slow = new boolean[failed.length];
+        this.minimumCalls = Math.max(1, Math.min(failed.length, properties.getMinimumCalls()));
+        this.openNanos = properties.getOpenDuration().toNanos();
+        Gauge.builder("aggregation.circuit.state", this, breaker -> breaker.state().ordinal())
+                .tag("api", api)
+                .description("0 closed, 1 open, 2 half open")
+                .register(meterRegistry);
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+
+    /**
+     * @return false while the circuit is open and keys should not even be queued
+     */
+    public synchronized boolean isCallPermitted() {
+        return state != State.OPEN || System.nanoTime() - openedAt >= openNanos;
+    }
+
+    /**
+     * Reserves a downstream call, in the half-open state only the probe gets one.
+     */
+    public synchronized Permit tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < openNanos) {
+                return Permit.DENIED;
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probing) {
+                return Permit.DENIED;
+            }
+            probing = true;
+            return Permit.PROBE;
+        }
+        return Permit.CALL;
+    }
+
+    public synchronized void onSuccess(Permit permit, long latencyNanos) {
+        record(permit, false, latencyNanos >= slowCallNanos);
+    }
+
+    public synchronized void onFailure(Permit permit, long latencyNanos) {
+        record(permit, true, latencyNanos >= slowCallNanos);
+    }
+
+    private void record(Permit permit, boolean failure, boolean slowCall) {
+        if (state == State.HALF_OPEN) {
+            if (permit == Permit.PROBE) {
+                probing = false;
+                if (failure || slowCall) {
+                    open();
+                } else {
+                    transition(State.CLOSED);
+                }
+            }
+            return;
+        }
+        if (recorded == failed.length) {
+            failures -= failed[next] ? 1 : 0;
+            slowCalls -= slow[next] ? 1 : 0;
+        } else {
+            recorded++;
+        }
+        failed[next] = failure;
+        slow[next] = slowCall;
+        failures += failure ? 1 : 0;
+        slowCalls += slowCall ? 1 : 0;
+        next = (next + 1) % failed.length;
+        if (state == State.CLOSED && recorded >= minimumCalls
+                && (failures >= failureRateThreshold * recorded || slowCalls >= slowCallRateThreshold * recorded)) {
+            open();
+        }
+    }
+
+    private void open() {
+        openedAt = System.nanoTime();
+        transition(State.OPEN);
+    }
+
+    private void transition(State target) {
+        LOGGER.warn("Circuit of {} goes from {} to {}", api, state, target);
+        state = target;
+        if (target == State.CLOSED) {
+            recorded = 0;
+            failures = 0;
+            slowCalls = 0;
+            next = 0;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.echyrski.aggregation.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.echyrski.aggregation.config.AggregationProperties;
+
+/**
+ * Consistent-hash ring over the replicas of the service deciding which one batches a key of an API. Every replica
+ * sits on the ring at several points and owns the keys hashing up to each of them, so a replica joining or leaving
+ * moves only the keys of its own arcs. The hash depends on nothing but the strings, replicas given the same peers
+ * agree on every owner.
+ * <p>
+ * A replica that failed a forwarded batch is skipped for the retry interval, its keys are batched locally meanwhile.
+ * Without cluster mode the ring is empty and every key is local.
+ */
+final class ClusterRing {
+
+    /**
+     * Endpoint of a replica answering the keys forwarded to it, served by the aggregation controller.
+     */
+    static final String FORWARD_PATH = "/internal/aggregation/{api}";
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String self;
+    private final List<String> peers = new ArrayList<>();
+    private final long[] points;
+    private final String[] owners;
+    private final Duration margin;
+    private final long retryIntervalNanos;
+    private final Map<String, Long> unavailableUntil = new ConcurrentHashMap<>();
+
+    ClusterRing(AggregationProperties.Cluster properties) {
+        this.margin = properties.getMargin();
+        this.retryIntervalNanos = properties.getRetryInterval().toNanos();
+        if (!properties.isEnabled()) {
+            this.self = null;
+            this.points = new long[0];
+            this.owners = new String[0];
+            return;
+        }
+        if (properties.getSelf() == null) {
+            throw new IllegalArgumentException("Cluster mode needs aggregation.cluster.self, the URL of this replica");
+        }
+        this.self = normalize(properties.getSelf());
+        // Sorted, so that replicas listing the peers in another order settle hash collisions alike
+        TreeSet<String> members = new TreeSet<>();
+        members.add(self);
+        properties.getPeers().forEach(peer -> members.add(normalize(peer)));
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String member : members) {
+            if (!member.equals(self)) {
+                peers.add(member);
+            }
+            for (int node = 0; node < properties.getVirtualNodes(); node++) {
+                ring.putIfAbsent(hash(member, Integer.toString(node)), member);
+            }
+        }
+        this.points = new long[ring.size()];
+        this.owners = new String[ring.size()];
+        int point = 0;
+        for (Map.Entry<Long, String> entry : ring.entrySet()) {
+            points[point] = entry.getKey();
+            owners[point++] = entry.getValue();
+        }
+    }
+
+    /**
+     * @return base URLs of the other replicas
+     */
+    List<String> peers() {
+        return peers;
+    }
+
+    boolean isEnabled() {
+        return self != null;
+    }
+
+    /**
+     * @return time a forwarded batch may take beyond the deadline sent to its owner
+     */
+    Duration margin() {
+        return margin;
+    }
+
+    /**
+     * @return base URL of the replica owning the key of the API, null if it is this one
+     */
+    String owner(String api, String key) {
+        if (points.length == 0) {
+            return null;
+        }
+        int point = Arrays.binarySearch(points, hash(api, key));
+        if (point < 0) {
+            point = -point - 1;
+        }
+        String owner = owners[point == points.length ? 0 : point];
+        return owner.equals(self) ? null : owner;
+    }
+
+    boolean isAvailable(String peer) {
+        Long until = unavailableUntil.get(peer);
+        return until == null || until - System.nanoTime() <= 0;
+    }
+
+    void markUnavailable(String peer) {
+        unavailableUntil.put(peer, System.nanoTime() + retryIntervalNanos);
+    }
+
+    /**
+     * FNV-1a over both strings and a separator, finished with the MurmurHash3 mix so that the points of similar
+     * strings spread over the whole ring.
+     */
+    static long hash(String first, String second) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < first.length(); i++) {
+            hash = (hash ^ first.charAt(i)) * FNV_PRIME;
+        }
+        hash *= FNV_PRIME;
+        for (int i = 0; i < second.length(); i++) {
+            hash = (hash ^ second.charAt(i)) * FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static String normalize(String url) {
+        String trimmed = url.trim();
+        return trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+    }
+}
@@ -0,0 +1,35 @@
+package org.echyrski.aggregation.service;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One HTTP call for the keys of a batch, a batch split by the URL budget, retried or hedged makes several.
+ */
+@Name("org.echyrski.aggregation.DownstreamCall")
+@Label("Downstream Call")
+@Category({"Aggregation", "Downstream"})
+@Description("HTTP call to the backend for keys of a batch")
+@StackTrace(false)
+final class DownstreamCallEvent extends Event {
+
+    @Label("API")
+    String api;
+
+    @Label("Batch Id")
+    long batchId;
+
+    @Label("Keys")
+    int keys;
+
+    @Label("Answered")
+    @Description("Keys this call answered first")
+    int answered;
+
+    @Label("Outcome")
+    String outcome;
+}
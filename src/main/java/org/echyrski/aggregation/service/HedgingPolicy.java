@@ -0,0 +1,119 @@
+package org.echyrski.aggregation.service;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+import org.echyrski.aggregation.config.AggregationProperties;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Mono;
+
+/**
+ * Hedged downstream calls: an attempt that has not answered within a percentile of the recent attempt latencies gets
+ * a duplicate, the first of the two to finish wins and the other is cancelled. Hedges are paid from a token budget
+ * filled by every call, so they add at most the budget ratio to the backend load. A failed hedge leaves the call to
+ * the original attempt.
+ */
+public class HedgingPolicy {
+
+    private final boolean enabled;
+    private final double percentile;
+    private final long minDelayNanos;
+    private final int minimumCalls;
+    private final TokenBudget budget;
+    private final Counter hedges;
+    private final Counter hedgesWon;
+    private final Counter budgetExhausted;
+
+    private final long[] latencies;
+    private int next;
+    private int recorded;
+    private long delayNanos = -1;
+
+    public HedgingPolicy(String api, AggregationProperties.Hedging properties, MeterRegistry meterRegistry) {
+        this.enabled = properties.isEnabled();
+        this.percentile = properties.getPercentile();
+        this.minDelayNanos = properties.getMinDelay().toNanos();
+        this.latencies = new long[Math.max(1, properties.getWindowSize())];
+        this.minimumCalls = Math.max(1, Math.min(latencies.length, properties.getMinimumCalls()));
+        this.budget = new TokenBudget(properties.getBudgetRatio(), properties.getBudgetCapacity());
+        this.hedges = Counter.builder("aggregation.downstream.hedges")
+                .tag("api", api)
+                .register(meterRegistry);
+        this.hedgesWon = Counter.builder("aggregation.downstream.hedges.won")
+                .description("Hedges that answered before the attempt they duplicated")
+                .tag("api", api)
+                .register(meterRegistry);
+        this.budgetExhausted = Counter.builder("aggregation.downstream.hedges.denied")
+                .description("Hedges not sent because the hedging budget was spent")
+                .tag("api", api)
+                .register(meterRegistry);
+        if (enabled) {
+            Gauge.builder("aggregation.downstream.hedge.delay", this, policy -> policy.delayNanos() / 1e6)
+                    .tag("api", api)
+                    .baseUnit("milliseconds")
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Hedges every attempt of a downstream call, to be called once per call and not per attempt.
+     *
+     * @param attempt one attempt of the call, subscribed again for the hedge
+     */
+    public Mono<Void> hedge(Mono<Void> attempt) {
+        if (!enabled) {
+            return attempt;
+        }
+        budget.deposit();
+        return Mono.defer(() -> {
+            long delay = delayNanos();
+            if (delay < 0) {
+                return timed(attempt);
+            }
+            Mono<Void> hedge = Mono.delay(Duration.ofNanos(delay))
+                    .flatMap(tick -> withdraw()
+                            ? timed(attempt).doOnSuccess(done -> hedgesWon.increment()).onErrorResume(error -> Mono.never())
+                            : Mono.<Void>never());
+            return Mono.firstWithSignal(timed(attempt), hedge);
+        });
+    }
+
+    /**
+     * @return the delay after which an attempt is hedged, negative until enough attempts were recorded
+     */
+    synchronized long delayNanos() {
+        if (delayNanos < 0 && recorded >= minimumCalls) {
+            long[] sorted = Arrays.copyOf(latencies, recorded);
+            Arrays.sort(sorted);
+            int rank = (int) Math.min(recorded - 1, Math.ceil(percentile * recorded) - 1);
+            delayNanos = Math.max(minDelayNanos, sorted[Math.max(0, rank)]);
+        }
+        return recorded >= minimumCalls ? delayNanos : -1;
+    }
+
+    synchronized void record(long latencyNanos) {
+        latencies[next] = latencyNanos;
+        next = (next + 1) % latencies.length;
+        recorded = Math.min(latencies.length, recorded + 1);
+        delayNanos = -1;
+    }
+
+    private Mono<Void> timed(Mono<Void> attempt) {
+        return Mono.defer(() -> {
+            long startedAt = System.nanoTime();
+            return attempt.doOnSuccess(done -> record(System.nanoTime() - startedAt));
+        });
+    }
+
+    private boolean withdraw() {
+        if (!budget.tryWithdraw()) {
+            budgetExhausted.increment();
+            return false;
+        }
+        hedges.increment();
+        return true;
+    }
+}
@@ -0,0 +1,75 @@
+package org.echyrski.aggregation.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Single-flight registry of the keys currently being fetched from one downstream API.
+ * The first collector asking for a key becomes the leader and has to schedule the fetch,
+ * every other collector asking for the same key attaches to the pending result. A collector
+ * asking for a key only pending in a later priority lane schedules it in its own lane too,
+ * so that it does not wait for the flush of a slower lane, and every collector gets the answer
+ * of whichever lane has it first.
+ */
+public class InFlightRequests<T> {
+
+    private final Map<String, Flight<T>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * @param lane ordinal of the priority lane the collector needs the key in
+     * @return true if the key was not in flight in that lane or an earlier one and the caller has to schedule its
+     * fetch in the lane
+     */
+    public boolean attach(String key, ResponseCollector<T> collector, int lane) {
+        boolean[] leader = new boolean[1];
+        pending.compute(key, (k, flight) -> {
+            if (flight == null) {
+                flight = new Flight<>(lane);
+                leader[0] = true;
+            } else if (lane < flight.lane) {
+                flight.lane = lane;
+                leader[0] = true;
+            }
+            flight.waiters.add(collector);
+            return flight;
+        });
+        return leader[0];
+    }
+
+    /**
+     * Hands the answer to every collector waiting for the key, a null value means the key has no answer.
+     */
+    public void complete(String key, T value) {
+        complete(key, value, 0);
+    }
+
+    /**
+     * @param dispatchedAt {@link System#nanoTime()} the batch answering the key was dispatched at, 0 if none was
+     */
+    public void complete(String key, T value, long dispatchedAt) {
+        Flight<T> flight = pending.remove(key);
+        if (flight != null) {
+            for (ResponseCollector<T> collector : flight.waiters) {
+                collector.submit(key, value, dispatchedAt);
+            }
+        }
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Collectors waiting for a key and the earliest lane it was scheduled in, only changed inside the compute of the map.
+     */
+    private static final class Flight<T> {
+        private final List<ResponseCollector<T>> waiters = new ArrayList<>(2);
+        private int lane;
+
+        Flight(int lane) {
+            this.lane = lane;
+        }
+    }
+}
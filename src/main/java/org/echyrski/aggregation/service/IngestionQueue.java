@@ -0,0 +1,138 @@
+package org.echyrski.aggregation.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import reactor.core.scheduler.Scheduler;
+import reactor.util.concurrent.Queues;
+
+/**
+ * Bounded lock-free multi-producer ingestion stage in front of a single consumer.
+ * Producers (the event-loop threads serving requests) only enqueue, the first producer finding the queue idle
+ * schedules a drain on the consumer worker, which hands every queued key to the consumer in order.
+ * A full queue rejects the key instead of blocking, so the caller can fail it fast.
+ * <p>
+ * The queue may be split into lanes with their own capacity, the drain always takes the next element from the first
+ * lane that has one, so a burst in a later lane never delays the elements of an earlier one.
+ */
+public class IngestionQueue<E> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IngestionQueue.class);
+
+    private final List<Lane<E>> lanes;
+    private final AtomicInteger wip = new AtomicInteger();
+    private final Consumer<E> consumer;
+    private final Scheduler.Worker worker;
+
+    public IngestionQueue(int capacity, Consumer<E> consumer, Scheduler scheduler) {
+        this(new int[]{capacity}, consumer, scheduler);
+    }
+
+    /**
+     * @param capacities capacity of every lane, in the order the lanes are drained
+     */
+    public IngestionQueue(int[] capacities, Consumer<E> consumer, Scheduler scheduler) {
+        this.lanes = new ArrayList<>(capacities.length);
+        for (int capacity : capacities) {
+            lanes.add(new Lane<>(capacity));
+        }
+        this.consumer = consumer;
+        this.worker = scheduler.createWorker();
+    }
+
+    /**
+     * @return false if the queue is full and the element was not accepted
+     */
+    public boolean offer(E element) {
+        return offer(element, 0);
+    }
+
+    /**
+     * @return false if the lane is full and the element was not accepted
+     */
+    public boolean offer(E element, int lane) {
+        Lane<E> target = lanes.get(lane);
+        if (target.size.incrementAndGet() > target.capacity) {
+            target.size.decrementAndGet();
+            return false;
+        }
+        target.queue.offer(element);
+        if (wip.getAndIncrement() == 0) {
+            worker.schedule(this::drain);
+        }
+        return true;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Lane<E> lane : lanes) {
+            size += lane.size.get();
+        }
+        return size;
+    }
+
+    public int size(int lane) {
+        return lanes.get(lane).size.get();
+    }
+
+    public int capacity() {
+        int capacity = 0;
+        for (Lane<E> lane : lanes) {
+            capacity += lane.capacity;
+        }
+        return capacity;
+    }
+
+    public int capacity(int lane) {
+        return lanes.get(lane).capacity;
+    }
+
+    /**
+     * Releases the consumer worker, elements still queued are not consumed.
+     */
+    public void dispose() {
+        worker.dispose();
+    }
+
+    private void drain() {
+        int missed = 1;
+        do {
+            E element;
+            while ((element = poll()) != null) {
+                try {
+                    consumer.accept(element);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Unable to consume ingested element {}", element, e);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private E poll() {
+        for (Lane<E> lane : lanes) {
+            E element = lane.queue.poll();
+            if (element != null) {
+                lane.size.decrementAndGet();
+                return element;
+            }
+        }
+        return null;
+    }
+
+    private static final class Lane<E> {
+        private final Queue<E> queue = Queues.<E>unboundedMultiproducer().get();
+        private final AtomicInteger size = new AtomicInteger();
+        private final int capacity;
+
+        Lane(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+}
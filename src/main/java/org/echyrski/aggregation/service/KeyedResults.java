@@ -0,0 +1,148 @@
+package org.echyrski.aggregation.service;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Answers of one API for the keys of one request, stored in two arrays indexed by key position.
+ * It is exposed as a read-only {@code Map<String, Optional<T>>}; the {@link Optional} and entry wrappers are only
+ * created when the map view is read, callers that know the type use {@link #key(int)} and {@link #value(int)}.
+ */
+public class KeyedResults<T> extends AbstractMap<String, Optional<T>> {
+
+    private static final int LINEAR_SCAN_LIMIT = 16;
+    private static final Object UNSET = new Object();
+    private static final Object EXPIRED = new Object();
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    private final String[] keys;
+    private final Object[] values;
+    private final Map<String, Integer> index;
+
+    KeyedResults(List<String> requested) {
+        String[] distinct = new String[requested.size()];
+        Map<String, Integer> positions = requested.size() > LINEAR_SCAN_LIMIT ? new HashMap<>(requested.size() * 2) : null;
+        int count = 0;
+        for (String key : requested) {
+            boolean duplicate = positions != null
+                    ? positions.putIfAbsent(key, count) != null
+                    : indexOf(distinct, count, key) >= 0;
+            if (!duplicate) {
+                distinct[count++] = key;
+            }
+        }
+        this.keys = count == distinct.length ? distinct : Arrays.copyOf(distinct, count);
+        this.values = new Object[count];
+        Arrays.fill(values, UNSET);
+        this.index = positions;
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    public String key(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * @return the answer for the key in the slot, or null if there is none (yet)
+     */
+    @SuppressWarnings("unchecked")
+    public T value(int slot) {
+        Object value = SLOTS.getAcquire(values, slot);
+        return value == UNSET || value == EXPIRED ? null : (T) value;
+    }
+
+    /**
+     * @return whether the slot was left without an answer because the request ran out of time
+     */
+    public boolean isExpired(int slot) {
+        return SLOTS.getAcquire(values, slot) == EXPIRED;
+    }
+
+    int slotOf(Object key) {
+        if (index != null) {
+            Integer slot = index.get(key);
+            return slot == null ? -1 : slot;
+        }
+        return indexOf(keys, keys.length, key);
+    }
+
+    /**
+     * Fills the slot unless it already holds an answer, so every slot is filled exactly once.
+     */
+    boolean fill(int slot, T value) {
+        return SLOTS.compareAndSet(values, slot, UNSET, value);
+    }
+
+    /**
+     * Marks the slot as expired unless it already holds an answer, it then reads as empty.
+     */
+    boolean expire(int slot) {
+        return SLOTS.compareAndSet(values, slot, UNSET, EXPIRED);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return slotOf(key) >= 0;
+    }
+
+    @Override
+    public Optional<T> get(Object key) {
+        int slot = slotOf(key);
+        return slot < 0 ? null : Optional.ofNullable(value(slot));
+    }
+
+    @Override
+    public Set<Entry<String, Optional<T>>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, Optional<T>>> iterator() {
+                return new Iterator<>() {
+                    private int slot;
+
+                    @Override
+                    public boolean hasNext() {
+                        return slot < keys.length;
+                    }
+
+                    @Override
+                    public Entry<String, Optional<T>> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<String, Optional<T>> entry = new SimpleImmutableEntry<>(keys[slot], Optional.ofNullable(value(slot)));
+                        slot++;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return keys.length;
+            }
+        };
+    }
+
+    private static int indexOf(String[] keys, int count, Object key) {
+        for (int i = 0; i < count; i++) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,12 @@
+package org.echyrski.aggregation.service;
+
+/**
+ * Key waiting to be batched together with the moment, in {@link System#nanoTime()} terms, by which the request
+ * that asked for it needs the answer, and the lane it is batched in.
+ */
+public record PendingKey(String key, long deadlineNanos, Priority priority) {
+
+    public PendingKey(String key, long deadlineNanos) {
+        this(key, deadlineNanos, Priority.INTERACTIVE);
+    }
+}
@@ -0,0 +1,77 @@
+package org.echyrski.aggregation.service;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Meters of one API that are not owned by a pipeline stage: end-to-end request latency, downstream call latency
+ * by outcome and the ingestion queue depth, request latency and queue depth by priority, and the keys forwarded to
+ * other replicas in cluster mode. Batching, retry, cache and circuit meters live with their stage.
+ */
+class PipelineMetrics {
+
+    enum Outcome {
+        SUCCESS, TIMEOUT, ERROR
+    }
+
+    private final Timer[] requestLatency = new Timer[Priority.values().length];
+    private final Timer[] downstreamLatency = new Timer[Outcome.values().length];
+    private final Counter forwardedKeys;
+    private final Counter fallbackKeys;
+
+    /**
+     * @param queueDepth keys waiting in the ingestion queues of a lane
+     */
+    PipelineMetrics(String api, ToIntFunction<Priority> queueDepth, MeterRegistry meterRegistry) {
+        for (Priority priority : Priority.values()) {
+            requestLatency[priority.ordinal()] = Timer.builder("aggregation.request.latency")
+                    .description("Time from submitting the keys of a request to the last of them being answered")
+                    .tag("api", api)
+                    .tag("priority", priority.name().toLowerCase(Locale.ROOT))
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+            Gauge.builder("aggregation.queue.depth", () -> queueDepth.applyAsInt(priority))
+                    .tag("api", api)
+                    .tag("priority", priority.name().toLowerCase(Locale.ROOT))
+                    .register(meterRegistry);
+        }
+        for (Outcome outcome : Outcome.values()) {
+            downstreamLatency[outcome.ordinal()] = Timer.builder("aggregation.downstream.latency")
+                    .description("Duration of a downstream batch call including its retries")
+                    .tag("api", api)
+                    .tag("outcome", outcome.name().toLowerCase(Locale.ROOT))
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+        }
+        this.forwardedKeys = Counter.builder("aggregation.cluster.forwarded")
+                .description("Keys forwarded to the replica owning them")
+                .tag("api", api)
+                .register(meterRegistry);
+        this.fallbackKeys = Counter.builder("aggregation.cluster.fallback")
+                .description("Forwarded keys batched locally because their owner failed to answer them")
+                .tag("api", api)
+                .register(meterRegistry);
+    }
+
+    void recordRequest(long startedAt, Priority priority) {
+        requestLatency[priority.ordinal()].record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+    }
+
+    void recordDownstream(long startedAt, Outcome outcome) {
+        downstreamLatency[outcome.ordinal()].record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+    }
+
+    void recordForwarded(int keys) {
+        forwardedKeys.increment(keys);
+    }
+
+    void recordFallback(int keys) {
+        fallbackKeys.increment(keys);
+    }
+}
@@ -0,0 +1,16 @@
+package org.echyrski.aggregation.service;
+
+/**
+ * Lane a key is batched in. Every lane of an API has its own batching policy and downstream concurrency, and the
+ * ingestion queue hands the keys of a lane to its batcher only once the lanes before it are empty.
+ */
+public enum Priority {
+    /**
+     * Customer facing lookups, flushed early in small batches.
+     */
+    INTERACTIVE,
+    /**
+     * Background lookups such as reconciliation jobs, gathered into large batches.
+     */
+    BULK
+}
@@ -0,0 +1,67 @@
+package org.echyrski.aggregation.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Splits the keys of a batch into downstream calls whose query stays within a byte budget. The keys are joined with
+ * commas and expanded into the URI template as one encoded variable, so every byte outside the unreserved characters
+ * of RFC 3986, the separating commas included, takes three bytes of the URL.
+ */
+final class QuerySplitter {
+
+    private static final int SEPARATOR_BYTES = 3;
+
+    private QuerySplitter() {
+    }
+
+    /**
+     * @param maxBytes budget of the encoded keys of one call, a key longer than it is sent on its own
+     * @return the keys in calls, in their iteration order
+     */
+    static List<List<String>> split(Collection<String> keys, int maxBytes) {
+        List<List<String>> calls = new ArrayList<>(1);
+        List<String> call = new ArrayList<>();
+        int bytes = 0;
+        for (String key : keys) {
+            int keyBytes = encodedLength(key);
+            if (!call.isEmpty() && bytes + SEPARATOR_BYTES + keyBytes > maxBytes) {
+                calls.add(call);
+                call = new ArrayList<>();
+                bytes = 0;
+            }
+            bytes += call.isEmpty() ? keyBytes : SEPARATOR_BYTES + keyBytes;
+            call.add(key);
+        }
+        if (!call.isEmpty()) {
+            calls.add(call);
+        }
+        return calls;
+    }
+
+    static int encodedLength(String key) {
+        int length = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (isUnreserved(c)) {
+                length++;
+            } else if (c < 0x80) {
+                length += 3;
+            } else {
+                // Non-ASCII keys are rare, encode the rest of the key to count its UTF-8 bytes
+                for (byte b : key.substring(i).getBytes(StandardCharsets.UTF_8)) {
+                    length += isUnreserved(b & 0xFF) ? 1 : 3;
+                }
+                return length;
+            }
+        }
+        return length;
+    }
+
+    private static boolean isUnreserved(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '.' || c == '_' || c == '~';
+    }
+}
@@ -0,0 +1,43 @@
+package org.echyrski.aggregation.service;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The keys of one API asked for by one request, from submission to the last of them being answered.
+ */
+@Name("org.echyrski.aggregation.Request")
+@Label("Aggregation Request")
+@Category({"Aggregation"})
+@Description("Keys of one API asked for by a request, until the last of them was answered")
+@StackTrace(false)
+final class RequestEvent extends Event {
+
+    @Label("API")
+    String api;
+
+    @Label("Priority")
+    String priority;
+
+    @Label("Keys")
+    int keys;
+
+    @Label("Wait")
+    @Description("Time until the batch answering the last key was dispatched")
+    @Timespan(Timespan.NANOSECONDS)
+    long wait;
+
+    @Label("Downstream")
+    @Description("Time the batch answering the last key took downstream")
+    @Timespan(Timespan.NANOSECONDS)
+    long downstream;
+
+    @Label("Expired")
+    @Description("Whether the deadline passed before every key was answered")
+    boolean expired;
+}
@@ -0,0 +1,35 @@
+package org.echyrski.aggregation.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-API breakdown of the time one HTTP request spent in the pipelines. A pipeline records the API of a request
+ * when its keys are answered, if an instance of this class is in the subscriber context under its class.
+ */
+public final class RequestTimings {
+
+    /**
+     * @param waitNanos       time until the batch answering the last key was dispatched
+     * @param downstreamNanos time that batch then took downstream
+     * @param totalNanos      time until every key was answered
+     */
+    public record Timing(long waitNanos, long downstreamNanos, long totalNanos) {
+    }
+
+    private final Map<String, Timing> timings = new LinkedHashMap<>();
+
+    /**
+     * Records the timing of an API, of several submissions for one API the longest is kept.
+     */
+    public synchronized void record(String api, Timing timing) {
+        timings.merge(api, timing, (current, next) -> next.totalNanos() > current.totalNanos() ? next : current);
+    }
+
+    /**
+     * @return the timings by API, in the order they were first recorded
+     */
+    public synchronized Map<String, Timing> timings() {
+        return new LinkedHashMap<>(timings);
+    }
+}
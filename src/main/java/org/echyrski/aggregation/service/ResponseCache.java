@@ -0,0 +1,70 @@
+package org.echyrski.aggregation.service;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import org.echyrski.aggregation.config.AggregationProperties;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Size bounded cache of downstream answers for one API. Keys the backend answered with nothing
+ * are cached as {@link Optional#empty()} with their own, usually shorter, TTL.
+ */
+public class ResponseCache<T> {
+
+    private final Cache<String, Optional<T>> cache;
+    private final boolean positive;
+    private final boolean negative;
+
+    /**
+     * Publishes the cache statistics, hit rate included, as {@code cache.*} meters tagged with the API name.
+     */
+    public ResponseCache(String api, AggregationProperties.Cache properties, MeterRegistry meterRegistry) {
+        this.positive = isEnabled(properties.getTtl());
+        this.negative = isEnabled(properties.getNegativeTtl());
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(positive || negative ? properties.getMaxSize() : 0)
+                .expireAfter(new ValueExpiry<T>(properties.getTtl().toNanos(), properties.getNegativeTtl().toNanos()))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, api);
+    }
+
+    public Optional<T> get(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    public void put(String key, T value) {
+        if (value != null ? positive : negative) {
+            cache.put(key, Optional.ofNullable(value));
+        }
+    }
+
+    private static boolean isEnabled(Duration ttl) {
+        return ttl != null && !ttl.isZero() && !ttl.isNegative();
+    }
+
+    private record ValueExpiry<T>(long ttlNanos, long negativeTtlNanos) implements Expiry<String, Optional<T>> {
+
+        @Override
+        public long expireAfterCreate(String key, Optional<T> value, long currentTime) {
+            return value.isPresent() ? ttlNanos : negativeTtlNanos;
+        }
+
+        @Override
+        public long expireAfterUpdate(String key, Optional<T> value, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, value, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String key, Optional<T> value, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package org.echyrski.aggregation.service;
 
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -7,37 +11,156 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import reactor.core.publisher.Sinks;
-import reactor.util.function.Tuple2;
 
 public class ResponseCollector<T> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ResponseCollector.class);
-    private final AtomicInteger processed = new AtomicInteger();
-    private final Sinks.Many<Tuple2<String, Optional<T>>> sink = Sinks.many().unicast().onBackpressureBuffer();
-    private final int expectedCount;
+    private final KeyedResults<T> results;
+    private final AtomicInteger remaining;
+    private final Sinks.One<Map<String, Optional<T>>> sink = Sinks.one();
+    private final Sinks.Many<Integer> filledSlots;
+    private volatile long lastDispatchedAt;
+    private volatile boolean expired;
 
-    public ResponseCollector(int expectedCount) {
-        LOGGER.debug("Collecter started with expectedCount={}", expectedCount);
-        this.expectedCount = expectedCount;
+    public ResponseCollector(List<String> keys) {
+        this(keys, false);
     }
 
-    public void submit(Tuple2<String, Optional<T>> rec) {
-        Sinks.EmitResult emitresult = sink.tryEmitNext(rec);
-        if (emitresult != Sinks.EmitResult.OK) {
-            LOGGER.debug("Request processing error for record {}:{}. Unable to emit  next:{}", rec.getT1(), rec.getT2(), emitresult);
-            LOGGER.debug("Collector complete abnormally expectedCount={}", expectedCount);
+    /**
+     * @param streaming whether every filled slot is also published through {@link #asFlux()}
+     */
+    public ResponseCollector(List<String> keys, boolean streaming) {
+        this.results = new KeyedResults<>(keys);
+        this.remaining = new AtomicInteger(results.size());
+        this.filledSlots = streaming ? Sinks.many().unicast().onBackpressureBuffer() : null;
+        LOGGER.debug("Collecter started with expectedCount={}", results.size());
+    }
+
+    /**
+     * Number of distinct keys, duplicates in the requested keys share one slot.
+     */
+    public int size() {
+        return results.size();
+    }
+
+    public String key(int slot) {
+        return results.key(slot);
+    }
+
+    /**
+     * Fills the slot of the key, a null value means the key has no answer. The result is emitted once the last
+     * slot is filled.
+     */
+    public void submit(String key, T value) {
+        submit(key, value, 0);
+    }
+
+    /**
+     * @param dispatchedAt {@link System#nanoTime()} the batch answering the key was dispatched at, 0 if none was
+     */
+    public void submit(String key, T value, long dispatchedAt) {
+        int slot = results.slotOf(key);
+        if (slot < 0) {
+            LOGGER.debug("Request processing error, key {} was not requested", key);
+            return;
+        }
+        if (dispatchedAt != 0) {
+            lastDispatchedAt = dispatchedAt;
+        }
+        fill(slot, value);
+    }
+
+    /**
+     * Resolves every key that has no answer yet as empty, used when the request runs out of time.
+     */
+    public void expire() {
+        for (int slot = 0; slot < results.size(); slot++) {
+            if (results.expire(slot)) {
+                expired = true;
+                filled(slot);
+            }
+        }
+    }
+
+    public boolean isComplete() {
+        return remaining.get() == 0;
+    }
 
-            sink.tryEmitComplete();
+    /**
+     * @return {@link System#nanoTime()} the batch answering the most recently answered key was dispatched at, 0 if
+     * no key was answered by a batch
+     */
+    public long lastDispatchedAt() {
+        return lastDispatchedAt;
+    }
+
+    /**
+     * @return whether a key was resolved as empty because the request ran out of time
+     */
+    public boolean isExpired() {
+        return expired;
+    }
+
+    /**
+     * Answers of the keys, leaving out those resolved as empty because the request ran out of time.
+     */
+    public Map<String, Optional<T>> answered() {
+        // Set before an expired slot counts down, so it is seen once the result was emitted
+        if (!expired) {
+            return results;
+        }
+        Map<String, Optional<T>> answered = new LinkedHashMap<>();
+        for (int slot = 0; slot < results.size(); slot++) {
+            if (!results.isExpired(slot)) {
+                answered.put(results.key(slot), Optional.ofNullable(results.value(slot)));
+            }
+        }
+        return answered;
+    }
+
+    private void fill(int slot, T value) {
+        if (results.fill(slot, value)) {
+            filled(slot);
+        }
+    }
+
+    private void filled(int slot) {
+        if (filledSlots == null) {
+            countDown();
             return;
         }
-        if (processed.addAndGet(1) == expectedCount) {
-            LOGGER.debug("Collector complete normally expectedCount={}", expectedCount);
-            sink.tryEmitComplete();
+        // Slots are filled from several batches at once, the stream needs its signals serialized
+        synchronized (filledSlots) {
+            filledSlots.tryEmitNext(slot);
+            if (countDown()) {
+                filledSlots.tryEmitComplete();
+            }
+        }
+    }
+
+    public Mono<Map<String, Optional<T>>> asMono() {
+        return sink.asMono();
+    }
+
+    /**
+     * Answers in the order they arrive, only available for a streaming collector.
+     */
+    public Flux<Map.Entry<String, Optional<T>>> asFlux() {
+        if (filledSlots == null) {
+            return Flux.error(new IllegalStateException("Collector was not created for streaming"));
         }
+        return filledSlots.asFlux()
+                .map(slot -> new AbstractMap.SimpleImmutableEntry<>(results.key(slot), Optional.ofNullable(results.value(slot))));
     }
 
-    public Flux<Tuple2<String, Optional<T>>> asFlux() {
-        return sink.asFlux();
+    private boolean countDown() {
+        if (remaining.decrementAndGet() == 0) {
+            LOGGER.debug("Collector complete normally expectedCount={}", results.size());
+            sink.tryEmitValue(results);
+            return true;
+        }
+        return false;
     }
 }
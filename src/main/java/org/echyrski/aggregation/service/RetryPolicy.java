@@ -0,0 +1,59 @@
+package org.echyrski.aggregation.service;
+
+import org.echyrski.aggregation.config.AggregationProperties;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.util.retry.Retry;
+import reactor.util.retry.RetryBackoffSpec;
+
+/**
+ * Jittered exponential backoff limited by a retry budget: every downstream call deposits a fraction of a retry and
+ * every retry withdraws a whole one, so a failing backend sees at most that fraction of extra calls instead of a
+ * fixed multiple of its traffic. Client errors are not retried.
+ */
+public class RetryPolicy {
+
+    private final TokenBudget budget;
+    private final RetryBackoffSpec spec;
+    private final Counter retries;
+    private final Counter budgetExhausted;
+
+    public RetryPolicy(String api, AggregationProperties.Retry properties, MeterRegistry meterRegistry) {
+        this.budget = new TokenBudget(properties.getBudgetRatio(), properties.getBudgetCapacity());
+        this.retries = Counter.builder("aggregation.downstream.retries")
+                .tag("api", api)
+                .register(meterRegistry);
+        this.budgetExhausted = Counter.builder("aggregation.downstream.retries.denied")
+                .description("Retries not made because the retry budget was spent")
+                .tag("api", api)
+                .register(meterRegistry);
+        this.spec = Retry.backoff(Math.max(0, properties.getMaxAttempts() - 1), properties.getMinBackoff())
+                .maxBackoff(properties.getMaxBackoff())
+                .jitter(properties.getJitter())
+                .filter(error -> isRetryable(error) && withdraw())
+                .onRetryExhaustedThrow((spec, signal) -> signal.failure());
+    }
+
+    /**
+     * Records a downstream call, to be called once per call and not per attempt.
+     */
+    public Retry onCall() {
+        budget.deposit();
+        return spec;
+    }
+
+    private boolean withdraw() {
+        if (!budget.tryWithdraw()) {
+            budgetExhausted.increment();
+            return false;
+        }
+        retries.increment();
+        return true;
+    }
+
+    private static boolean isRetryable(Throwable error) {
+        return !(error instanceof WebClientResponseException response && response.getStatusCode().is4xxClientError());
+    }
+}
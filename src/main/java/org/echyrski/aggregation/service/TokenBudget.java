@@ -0,0 +1,44 @@
+package org.echyrski.aggregation.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Budget of extra downstream calls: every regular call deposits a fraction of a token, every extra call withdraws a
+ * whole one, so extra calls add at most that fraction to the backend load. Tokens are kept in thousandths.
+ */
+class TokenBudget {
+
+    private static final long TOKEN = 1000;
+
+    private final long deposit;
+    private final long capacity;
+    private final AtomicLong balance;
+
+    TokenBudget(double ratio, int capacity) {
+        this.deposit = Math.round(ratio * TOKEN);
+        this.capacity = capacity * TOKEN;
+        this.balance = new AtomicLong(this.capacity);
+    }
+
+    void deposit() {
+        balance.accumulateAndGet(deposit, (current, amount) -> Math.min(capacity, current + amount));
+    }
+
+    /**
+     * @return false if less than a whole token is left
+     */
+    boolean tryWithdraw() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < TOKEN) {
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - TOKEN));
+        return true;
+    }
+
+    long balance() {
+        return balance.get();
+    }
+}
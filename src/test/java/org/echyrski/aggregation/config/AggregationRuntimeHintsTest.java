@@ -0,0 +1,28 @@
+package org.echyrski.aggregation.config;
+
+import java.util.ArrayList;
+
+import org.echyrski.aggregation.model.AggregationQuery;
+import org.echyrski.aggregation.model.AggregationResponse;
+import org.junit.jupiter.api.Test;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.predicate.RuntimeHintsPredicates;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AggregationRuntimeHintsTest {
+
+    @Test
+    void registerHints_BindsRecordsAndAnswerTypes() throws NoSuchMethodException {
+        RuntimeHints hints = new RuntimeHints();
+        new AggregationRuntimeHints().registerHints(hints, getClass().getClassLoader());
+
+        assertTrue(RuntimeHintsPredicates.reflection().onMethod(AggregationResponse.class, "apis").test(hints));
+        assertTrue(RuntimeHintsPredicates.reflection().onType(AggregationQuery.class).test(hints));
+        assertTrue(RuntimeHintsPredicates.reflection().onType(Double.class)
+                .withMemberCategories(MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS, MemberCategory.INVOKE_PUBLIC_METHODS).test(hints));
+        assertTrue(RuntimeHintsPredicates.reflection().onMethod(Double.class.getMethod("valueOf", String.class)).invoke().test(hints));
+        assertTrue(RuntimeHintsPredicates.reflection().onConstructor(ArrayList.class.getConstructor()).invoke().test(hints));
+    }
+}
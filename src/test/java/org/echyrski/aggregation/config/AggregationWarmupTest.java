@@ -0,0 +1,88 @@
+package org.echyrski.aggregation.config;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.echyrski.aggregation.service.AggregationService;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import reactor.core.publisher.Mono;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class AggregationWarmupTest {
+
+    @Test
+    void run_StubbedRequestsAndHotKeys() {
+        AggregationService aggregationService = mock(AggregationService.class);
+        when(aggregationService.openConnections(2)).thenReturn(Mono.empty());
+        when(aggregationService.submitRequest("pricing", List.of("NL", "CN")))
+                .thenReturn(Mono.just(Map.of("NL", Optional.of(14.24), "CN", Optional.empty())));
+        AggregationProperties properties = properties();
+        properties.getWarmup().setConnections(2);
+        properties.getWarmup().setHotKeys(Map.of("pricing", List.of("NL", "CN")));
+
+        warmup(aggregationService, WebClient.builder(), properties).run(null);
+
+        // Synthetic requests went to the stub, the service only saw the connections and the hot keys
+        verify(aggregationService).openConnections(2);
+        verify(aggregationService).submitRequest("pricing", List.of("NL", "CN"));
+        verifyNoMoreInteractions(aggregationService);
+    }
+
+    @Test
+    void run_TimeoutStartsAnyway() {
+        AggregationService aggregationService = mock(AggregationService.class);
+        when(aggregationService.openConnections(anyInt())).thenReturn(Mono.never());
+        AggregationProperties properties = properties();
+        properties.getWarmup().setTimeout(Duration.ofMillis(100));
+
+        warmup(aggregationService, WebClient.builder(), properties).run(null);
+
+        verify(aggregationService, never()).submitRequest(anyString(), anyList());
+    }
+
+    @Test
+    void run_UnstubbedRequestsBypassService() {
+        AggregationService aggregationService = mock(AggregationService.class);
+        when(aggregationService.openConnections(anyInt())).thenReturn(Mono.empty());
+        AtomicInteger backendCalls = new AtomicInteger();
+        WebClient.Builder backend = WebClient.builder().exchangeFunction(request -> {
+            backendCalls.incrementAndGet();
+            return Mono.just(ClientResponse.create(HttpStatus.OK).header("Content-Type", "application/json").body("{}").build());
+        });
+        AggregationProperties properties = properties();
+        properties.getWarmup().setStub(false);
+
+        warmup(aggregationService, backend, properties).run(null);
+
+        // The made-up keys reached the backend through a service of their own, not through the caches of the real one
+        assertTrue(backendCalls.get() > 0);
+        verify(aggregationService).openConnections(0);
+        verifyNoMoreInteractions(aggregationService);
+    }
+
+    private static AggregationWarmup warmup(AggregationService aggregationService, WebClient.Builder backend, AggregationProperties properties) {
+        return new AggregationWarmup(aggregationService, backend, "http://backend", properties, new ObjectMapper());
+    }
+
+    private static AggregationProperties properties() {
+        AggregationProperties properties = new AggregationProperties();
+        properties.getApis().put("pricing", new AggregationProperties.Api("/pricing?q={queries}", "java.lang.Double",
+                new AggregationProperties.Cache()));
+        properties.getApis().put("shipments", new AggregationProperties.Api("/shipments?q={queries}", "java.util.List<java.lang.String>",
+                new AggregationProperties.Cache()));
+        properties.getWarmup().setEnabled(true);
+        properties.getWarmup().setRequests(200);
+        return properties;
+    }
+}
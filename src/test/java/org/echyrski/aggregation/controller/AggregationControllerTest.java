@@ -1,17 +1,28 @@
 package org.echyrski.aggregation.controller;
 
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
+import org.echyrski.aggregation.model.AggregationEvent;
+import org.echyrski.aggregation.model.AggregationQuery;
 import org.echyrski.aggregation.model.AggregationResponse;
 import org.echyrski.aggregation.service.AggregationService;
+import org.echyrski.aggregation.service.Priority;
+import org.echyrski.aggregation.service.RequestTimings;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.util.LinkedMultiValueMap;
 
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
@@ -29,86 +40,325 @@ public class AggregationControllerTest {
     @BeforeEach
     void setUp() {
         MockitoAnnotations.openMocks(this);
+        when(aggregationService.apis()).thenReturn(new LinkedHashSet<>(List.of("pricing", "track", "shipments")));
     }
 
     @Test
     void aggregate_Success() {
         // Mock the responses from the AggregationService
-        when(aggregationService.submitPricingRequest(anyList()))
+        when(aggregationService.submitRequest(eq("pricing"), anyList(), any(), any()))
                 .thenReturn(Mono.just(Map.of("109347263", Optional.of(100.0))));
-        when(aggregationService.submitTrackRequest(anyList()))
+        when(aggregationService.submitRequest(eq("track"), anyList(), any(), any()))
                 .thenReturn(Mono.just(Map.of("109347263", Optional.of("NEW"))));
-        when(aggregationService.submitShipmentRequest(anyList()))
+        when(aggregationService.submitRequest(eq("shipments"), anyList(), any(), any()))
                 .thenReturn(Mono.just(Map.of("109347263", Optional.of(List.of("box", "pallet")))));
 
         // Define input parameters
-        List<String> pricing = List.of("109347263");
-        List<String> track = List.of("109347263");
-        List<String> shipments = List.of("109347263");
+        LinkedMultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.add("pricing", "109347263");
+        params.add("track", "109347263");
+        params.add("shipments", "109347263");
 
         // Call the aggregate method and verify the result
-        Mono<AggregationResponse> result = aggregationController.aggregate(pricing, track, shipments);
+        Mono<AggregationResponse> result = aggregationController.aggregate(params, null, null);
 
         StepVerifier.create(result)
-                .expectNextMatches(response ->
-                        response.pricing().equals(Map.of("109347263", Optional.of(100.0))) &&
-                                response.track().equals(Map.of("109347263", Optional.of("NEW"))) &&
-                                response.shipments().equals(Map.of("109347263", Optional.of(List.of("box", "pallet"))))
-                )
+                .expectNext(response(Map.of("109347263", Optional.of(100.0)),
+                        Map.of("109347263", Optional.of("NEW")),
+                        Map.of("109347263", Optional.of(List.of("box", "pallet")))))
                 .expectComplete()
                 .verify();
     }
 
     @Test
     void aggregate_EmptyParameters() {
-        // Mock the responses from the AggregationService for empty inputs
-        when(aggregationService.submitPricingRequest(anyList()))
-                .thenReturn(Mono.just(Map.of()));
-        when(aggregationService.submitTrackRequest(anyList()))
-                .thenReturn(Mono.just(Map.of()));
-        when(aggregationService.submitShipmentRequest(anyList()))
-                .thenReturn(Mono.just(Map.of()));
-
         // Define empty input parameters
-        List<String> pricing = List.of();
-        List<String> track = List.of();
-        List<String> shipments = List.of();
+        LinkedMultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.add("pricing", "");
+        params.add("track", "");
 
         // Call the aggregate method and verify the result
-        Mono<AggregationResponse> result = aggregationController.aggregate(pricing, track, shipments);
+        Mono<AggregationResponse> result = aggregationController.aggregate(params, null, null);
 
         StepVerifier.create(result)
-                .expectNextMatches(response ->
-                        response.pricing().isEmpty() &&
-                                response.track().isEmpty() &&
-                                response.shipments().isEmpty()
-                )
+                .expectNext(response(Map.of(), Map.of(), Map.of()))
                 .expectComplete()
                 .verify();
+        verify(aggregationService, never()).submitRequest(any(), any(), any(), any());
     }
 
     @Test
-    void aggregate_NullParameters() {
-        // Mock the responses from the AggregationService for null inputs
-        when(aggregationService.submitPricingRequest(null))
-                .thenReturn(Mono.just(Map.of()));
-        when(aggregationService.submitTrackRequest(null))
-                .thenReturn(Mono.just(Map.of()));
-        when(aggregationService.submitShipmentRequest(null))
-                .thenReturn(Mono.just(Map.of()));
+    void aggregate_NoParameters() {
+        // Call the aggregate method without parameters and verify the result
+        Mono<AggregationResponse> result = aggregationController.aggregate(new LinkedMultiValueMap<>(), null, null);
+
+        StepVerifier.create(result)
+                .expectNext(response(Map.of(), Map.of(), Map.of()))
+                .expectComplete()
+                .verify();
+        verify(aggregationService, never()).submitRequest(any(), any(), any(), any());
+    }
 
-        // Call the aggregate method with null parameters and verify the result
-        Mono<AggregationResponse> result = aggregationController.aggregate(null, null, null);
+    @Test
+    void aggregate_OnlyRequestedApis() {
+        when(aggregationService.submitRequest(eq("pricing"), anyList(), any(), any()))
+                .thenReturn(Mono.just(Map.of("NL", Optional.of(14.24), "CN", Optional.empty())));
+        LinkedMultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.add("pricing", "NL,CN");
+        params.add("stock", "NL");
+
+        StepVerifier.create(aggregationController.aggregate(params, null, null))
+                .expectNext(response(Map.of("NL", Optional.of(14.24), "CN", Optional.empty()), Map.of(), Map.of()))
+                .expectComplete()
+                .verify();
+        verify(aggregationService).submitRequest(eq("pricing"), eq(List.of("NL", "CN")), any(), any());
+        verify(aggregationService, times(1)).submitRequest(any(), any(), any(), any());
+    }
+
+    @Test
+    void aggregateStream_Success() {
+        when(aggregationService.streamRequest(eq("pricing"), anyList(), any(), any()))
+                .thenReturn(Flux.just(Map.entry("NL", Optional.of(100.0))));
+        when(aggregationService.streamRequest(eq("track"), anyList(), any(), any()))
+                .thenReturn(Flux.just(Map.entry("109347263", Optional.empty())));
+        LinkedMultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.add("pricing", "NL");
+        params.add("track", "109347263");
+
+        Flux<AggregationEvent> result = aggregationController.aggregateStream(params, null, null);
 
         StepVerifier.create(result)
-                .expectNextMatches(response ->
-                        response.pricing().isEmpty() &&
-                                response.track().isEmpty() &&
-                                response.shipments().isEmpty()
-                )
+                .expectNext(AggregationEvent.entry("pricing", "NL", Optional.of(100.0)))
+                .expectNext(AggregationEvent.entry("track", "109347263", Optional.empty()))
+                .expectNext(AggregationEvent.COMPLETE)
                 .expectComplete()
                 .verify();
+        verify(aggregationService, never()).streamRequest(eq("shipments"), any(), any(), any());
     }
 
+    @Test
+    void aggregate_NegotiatesStreamingByAcceptHeader() {
+        when(aggregationService.submitRequest(eq("pricing"), any(), any(), any()))
+                .thenReturn(Mono.just(Map.of("NL", Optional.of(100.0))));
+        when(aggregationService.streamRequest(eq("pricing"), any(), any(), any()))
+                .thenReturn(Flux.just(Map.entry("NL", Optional.of(100.0))));
+        WebTestClient client = WebTestClient.bindToController(aggregationController).build();
 
+        client.get().uri("/aggregation?pricing=NL")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_JSON)
+                .expectBody().json("{\"pricing\":{\"NL\":100.0},\"track\":{},\"shipments\":{}}");
+
+        client.get().uri("/aggregation?pricing=NL")
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+                .expectBody(String.class).isEqualTo("{\"api\":\"pricing\",\"key\":\"NL\",\"value\":100.0}\n{\"complete\":true}\n");
+    }
+
+    @Test
+    void aggregate_ShedWhenSaturated() {
+        when(aggregationService.isSaturated(any(), any())).thenReturn(true);
+        WebTestClient client = WebTestClient.bindToController(aggregationController).build();
+
+        client.get().uri("/aggregation?pricing=NL")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+        verify(aggregationService, never()).submitRequest(any(), any(), any(), any());
+    }
+
+    @Test
+    void aggregate_PassesPriorityHeader() {
+        when(aggregationService.submitRequest(eq("pricing"), any(), any(), any()))
+                .thenReturn(Mono.just(Map.of("NL", Optional.of(100.0))));
+        WebTestClient client = WebTestClient.bindToController(aggregationController).build();
+
+        client.get().uri("/aggregation?pricing=NL")
+                .header(AggregationController.PRIORITY_HEADER, "bulk")
+                .exchange()
+                .expectStatus().isOk();
+        verify(aggregationService).submitRequest(eq("pricing"), eq(List.of("NL")), any(), eq(Priority.BULK));
+
+        client.get().uri("/aggregation?pricing=NL")
+                .header(AggregationController.PRIORITY_HEADER, "urgent")
+                .exchange()
+                .expectStatus().isBadRequest();
+    }
+
+    @Test
+    void aggregate_ServerTimingHeader() {
+        when(aggregationService.submitRequest(eq("pricing"), any(), any(), any()))
+                .thenReturn(Mono.deferContextual(context -> {
+                    context.get(RequestTimings.class).record("pricing", new RequestTimings.Timing(1_000_000, 2_500_000, 3_500_000));
+                    return Mono.just(Map.of("NL", Optional.of(100.0)));
+                }));
+        WebTestClient client = WebTestClient.bindToController(aggregationController)
+                .webFilter(new ServerTimingFilter(true))
+                .build();
+
+        client.get().uri("/aggregation?pricing=NL")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(ServerTimingFilter.SERVER_TIMING_HEADER,
+                        "pricing;dur=3.50, pricing-wait;dur=1.00, pricing-downstream;dur=2.50");
+    }
+
+    @Test
+    void aggregate_ServerTimingDisabled() {
+        when(aggregationService.submitRequest(eq("pricing"), any(), any(), any()))
+                .thenReturn(Mono.just(Map.of("NL", Optional.of(100.0))));
+        WebTestClient client = WebTestClient.bindToController(aggregationController)
+                .webFilter(new ServerTimingFilter(false))
+                .build();
+
+        client.get().uri("/aggregation?pricing=NL")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().doesNotExist(ServerTimingFilter.SERVER_TIMING_HEADER);
+    }
+
+    @Test
+    void aggregateBatch_SubmitsUnionAndSplitsByQuery() {
+        when(aggregationService.submitRequest(eq("pricing"), eq(List.of("NL", "CN")), any(), any()))
+                .thenReturn(Mono.just(Map.of("NL", Optional.of(14.24), "CN", Optional.empty())));
+        when(aggregationService.submitRequest(eq("track"), eq(List.of("109347263")), any(), any()))
+                .thenReturn(Mono.just(Map.of("109347263", Optional.of("NEW"))));
+        List<AggregationQuery> queries = List.of(
+                new AggregationQuery(Map.of("pricing", List.of("NL"), "track", List.of("109347263"))),
+                new AggregationQuery(Map.of("pricing", List.of("CN", "NL"))));
+
+        StepVerifier.create(aggregationController.aggregateBatch(queries, null, null))
+                .expectNext(List.of(
+                        response(Map.of("NL", Optional.of(14.24)), Map.of("109347263", Optional.of("NEW")), Map.of()),
+                        response(Map.of("CN", Optional.empty(), "NL", Optional.of(14.24)), Map.of(), Map.of())))
+                .expectComplete()
+                .verify();
+        verify(aggregationService, times(1)).submitRequest(eq("pricing"), anyList(), any(), any());
+        verify(aggregationService, never()).submitRequest(eq("shipments"), any(), any(), any());
+    }
+
+    @Test
+    void aggregateBatchStream_EmitsEveryQueryWithItsIndex() {
+        when(aggregationService.submitRequest(eq("pricing"), eq(List.of("NL")), any(), any()))
+                .thenReturn(Mono.just(Map.of("NL", Optional.of(14.24))));
+        when(aggregationService.submitRequest(eq("pricing"), eq(List.of("CN")), any(), any()))
+                .thenReturn(Mono.just(Map.of("CN", Optional.of(3.5))));
+        WebTestClient client = WebTestClient.bindToController(aggregationController).build();
+
+        client.post().uri("/aggregation/batch")
+                .accept(MediaType.APPLICATION_NDJSON)
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("[{\"pricing\":[\"NL\"]},{\"pricing\":[\"CN\"]}]")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo(
+                        "{\"index\":0,\"response\":{\"pricing\":{\"NL\":14.24},\"track\":{},\"shipments\":{}}}\n" +
+                        "{\"index\":1,\"response\":{\"pricing\":{\"CN\":3.5},\"track\":{},\"shipments\":{}}}\n");
+    }
+
+    @Test
+    void aggregateBatch_TooLarge() {
+        when(aggregationService.exceedsBatchLimits(2, 3)).thenReturn(true);
+        WebTestClient client = WebTestClient.bindToController(aggregationController).build();
+
+        client.post().uri("/aggregation/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("[{\"pricing\":[\"NL\",\"CN\"]},{\"track\":[\"1\"]}]")
+                .exchange()
+                .expectStatus().isBadRequest();
+        verify(aggregationService, never()).submitRequest(any(), any(), any(), any());
+    }
+
+    @Test
+    void aggregateBatch_Invalid() {
+        WebTestClient client = WebTestClient.bindToController(aggregationController).build();
+
+        for (String body : List.of("[{\"pricing\":[\"NL\"]},null]", "[{\"pricing\":[\"NL\",null]}]", "[{\"pricing\":[\" \"]}]",
+                "[{\"stock\":[\"NL\"]}]")) {
+            client.post().uri("/aggregation/batch")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(body)
+                    .exchange()
+                    .expectStatus().isBadRequest();
+            client.post().uri("/aggregation/batch")
+                    .accept(MediaType.APPLICATION_NDJSON)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(body)
+                    .exchange()
+                    .expectStatus().isBadRequest();
+        }
+        verify(aggregationService, never()).submitRequest(any(), any(), any(), any());
+        verify(aggregationService, never()).isSaturated(any(), any());
+    }
+
+    @Test
+    void aggregateForwarded_AnswersLikeBackend() {
+        when(aggregationService.isClustered()).thenReturn(true);
+        when(aggregationService.submitForwardedRequest(eq("pricing"), eq(List.of("NL", "CN")), any(), eq(Priority.BULK)))
+                .thenReturn(Mono.just(new LinkedHashMap<>(Map.of("NL", Optional.of(14.24), "CN", Optional.empty()))));
+        WebTestClient client = WebTestClient.bindToController(aggregationController).build();
+
+        client.post().uri("/internal/aggregation/pricing")
+                .header(AggregationController.PRIORITY_HEADER, "bulk")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("[\"NL\",\"CN\"]")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody().json("{\"NL\":14.24,\"CN\":null}");
+        verify(aggregationService, never()).submitRequest(any(), any(), any(), any());
+    }
+
+    @Test
+    void aggregateForwarded_InvalidKeys() {
+        when(aggregationService.isClustered()).thenReturn(true);
+        WebTestClient client = WebTestClient.bindToController(aggregationController).build();
+
+        for (String body : List.of("[\"NL\",null]", "[\"\"]")) {
+            client.post().uri("/internal/aggregation/pricing")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(body)
+                    .exchange()
+                    .expectStatus().isBadRequest();
+        }
+        verify(aggregationService, never()).submitForwardedRequest(any(), any(), any(), any());
+    }
+
+    @Test
+    void aggregateForwarded_UnknownApi() {
+        when(aggregationService.isClustered()).thenReturn(true);
+        WebTestClient client = WebTestClient.bindToController(aggregationController).build();
+
+        client.post().uri("/internal/aggregation/stock")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("[\"NL\"]")
+                .exchange()
+                .expectStatus().isNotFound();
+    }
+
+    @Test
+    void aggregateForwarded_NotFoundWithoutCluster() {
+        WebTestClient client = WebTestClient.bindToController(aggregationController).build();
+
+        client.post().uri("/internal/aggregation/pricing")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("[\"NL\"]")
+                .exchange()
+                .expectStatus().isNotFound();
+        verify(aggregationService, never()).submitForwardedRequest(any(), any(), any(), any());
+    }
+
+    private static AggregationResponse response(Map<String, ?> pricing, Map<String, ?> track, Map<String, ?> shipments) {
+        Map<String, Map<String, Optional<Object>>> apis = new LinkedHashMap<>();
+        apis.put("pricing", answers(pricing));
+        apis.put("track", answers(track));
+        apis.put("shipments", answers(shipments));
+        return new AggregationResponse(apis);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Optional<Object>> answers(Map<String, ?> answers) {
+        return (Map<String, Optional<Object>>) answers;
+    }
 }
@@ -0,0 +1,112 @@
+package org.echyrski.aggregation.controller;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.echyrski.aggregation.model.AggregationResponse;
+import org.echyrski.aggregation.service.ResponseCollector;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBuffer;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.netty.buffer.UnpooledByteBufAllocator;
+import reactor.core.publisher.Flux;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AggregationResponseEncoderTest {
+
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+    private final AggregationResponseEncoder encoder = new AggregationResponseEncoder(objectMapper);
+
+    @Test
+    void encodeValue_MatchesJacksonEncoding() throws Exception {
+        ResponseCollector<Object> pricing = new ResponseCollector<>(List.of("NL", "CN", "NL"));
+        pricing.submit("NL", 14.24);
+        pricing.submit("CN", null);
+        ResponseCollector<Object> shipments = new ResponseCollector<>(List.of("109347263"));
+        shipments.submit("109347263", List.of("box", "pallet"));
+        Map<String, Map<String, Optional<Object>>> apis = new LinkedHashMap<>();
+        apis.put("pricing", pricing.asMono().block());
+        apis.put("track", Map.of("123456891", Optional.of("NEW")));
+        apis.put("shipments", shipments.asMono().block());
+        AggregationResponse response = new AggregationResponse(apis);
+
+        String json = encode(response);
+
+        assertEquals("{\"pricing\":{\"NL\":14.24,\"CN\":null},\"track\":{\"123456891\":\"NEW\"},\"shipments\":{\"109347263\":[\"box\",\"pallet\"]}}", json);
+        assertEquals(objectMapper.readTree(objectMapper.writeValueAsString(response)), objectMapper.readTree(json));
+    }
+
+    @Test
+    void encode_StreamAsJsonArray() {
+        Map<String, Map<String, Optional<Object>>> apis = new LinkedHashMap<>();
+        apis.put("pricing", Map.of("NL", Optional.of(14.24)));
+        apis.put("track", Map.of());
+        apis.put("shipments", Map.of());
+        AggregationResponse response = new AggregationResponse(apis);
+
+        String json = DataBufferUtils.join(encoder.encode(Flux.just(response, response), DefaultDataBufferFactory.sharedInstance,
+                        ResolvableType.forClass(AggregationResponse.class), MediaType.APPLICATION_JSON, Map.of()))
+                .map(buffer -> buffer.toString(StandardCharsets.UTF_8))
+                .block();
+
+        assertEquals("[{\"pricing\":{\"NL\":14.24},\"track\":{},\"shipments\":{}},{\"pricing\":{\"NL\":14.24},\"track\":{},\"shipments\":{}}]", json);
+    }
+
+    @Test
+    void encodeValue_FailureReleasesBuffer() {
+        List<NettyDataBuffer> allocated = new ArrayList<>();
+        NettyDataBufferFactory bufferFactory = new NettyDataBufferFactory(UnpooledByteBufAllocator.DEFAULT) {
+            @Override
+            public NettyDataBuffer allocateBuffer(int initialCapacity) {
+                NettyDataBuffer buffer = super.allocateBuffer(initialCapacity);
+                allocated.add(buffer);
+                return buffer;
+            }
+        };
+        Map<String, Map<String, Optional<Object>>> apis = new LinkedHashMap<>();
+        apis.put("pricing", new AbstractMap<>() {
+            @Override
+            public Set<Entry<String, Optional<Object>>> entrySet() {
+                throw new IllegalStateException("Answers are gone");
+            }
+        });
+
+        assertThrows(IllegalStateException.class, () -> encoder.encodeValue(new AggregationResponse(apis), bufferFactory,
+                ResolvableType.forClass(AggregationResponse.class), MediaType.APPLICATION_JSON, Map.of()));
+        assertEquals(1, allocated.size());
+        assertEquals(0, allocated.get(0).getNativeBuffer().refCnt());
+    }
+
+    @Test
+    void canEncode_OnlyAggregationResponseAsJson() {
+        assertTrue(encoder.canEncode(ResolvableType.forClass(AggregationResponse.class), MediaType.APPLICATION_JSON));
+        assertFalse(encoder.canEncode(ResolvableType.forClass(AggregationResponse.class), MediaType.APPLICATION_XML));
+        assertFalse(encoder.canEncode(ResolvableType.forClass(Map.class), MediaType.APPLICATION_JSON));
+    }
+
+    private String encode(AggregationResponse response) {
+        DataBuffer buffer = encoder.encodeValue(response, DefaultDataBufferFactory.sharedInstance,
+                ResolvableType.forClass(AggregationResponse.class), MediaType.APPLICATION_JSON, Map.of());
+        try {
+            return buffer.toString(StandardCharsets.UTF_8);
+        } finally {
+            DataBufferUtils.release(buffer);
+        }
+    }
+}
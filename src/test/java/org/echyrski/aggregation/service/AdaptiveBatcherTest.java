@@ -0,0 +1,180 @@
+package org.echyrski.aggregation.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.echyrski.aggregation.config.AggregationProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.test.StepVerifier;
+import reactor.test.scheduler.VirtualTimeScheduler;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdaptiveBatcherTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final VirtualTimeScheduler timer = VirtualTimeScheduler.create();
+    private final List<List<String>> batches = new ArrayList<>();
+    private AggregationProperties.Batching properties;
+    private AdaptiveBatcher batcher;
+
+    @BeforeEach
+    void setUp() {
+        properties = new AggregationProperties.Batching();
+        properties.setMaxSize(20);
+        properties.setLatencyBudget(Duration.ofMillis(50));
+    }
+
+    @Test
+    void loneKey_FlushedImmediately() {
+        batcher = start();
+
+        batcher.add("NL");
+
+        assertEquals(List.of(List.of("NL")), batches);
+        assertEquals(1.0, meterRegistry.get("aggregation.batch.flush").tag("reason", "idle").counter().count());
+    }
+
+    @Test
+    void outstandingBatchReleased_FlushesWaitingKeys() {
+        properties.setMinSize(3);
+        batcher = start();
+
+        batcher.add("NL");
+        batcher.add("UK");
+        assertEquals(List.of(List.of("NL")), batches);
+
+        batcher.release();
+
+        assertEquals(List.of(List.of("NL"), List.of("UK")), batches);
+        assertEquals(2.0, meterRegistry.get("aggregation.batch.flush").tag("reason", "idle").counter().count());
+    }
+
+    @Test
+    void burst_GrowsBatchesUpToMaxSize() {
+        batcher = start();
+
+        for (int i = 0; i < 1000; i++) {
+            batcher.add(String.valueOf(i));
+        }
+        timer.advanceTimeBy(Duration.ofSeconds(1));
+
+        assertEquals(1000, batches.stream().mapToInt(List::size).sum());
+        assertTrue(batches.stream().allMatch(batch -> batch.size() <= 20));
+        assertTrue(batches.stream().anyMatch(batch -> batch.size() == 20));
+    }
+
+    @Test
+    void partialBatch_FlushedOnDeadline() {
+        properties.setMinSize(3);
+        batcher = start();
+
+        batcher.add("BE");
+        batcher.add("NL");
+        batcher.add("UK");
+        assertEquals(List.of(List.of("BE")), batches);
+
+        timer.advanceTimeBy(Duration.ofMillis(50));
+
+        assertEquals(List.of(List.of("BE"), List.of("NL", "UK")), batches);
+        assertEquals(1.0, meterRegistry.get("aggregation.batch.flush").tag("reason", "deadline").counter().count());
+    }
+
+    @Test
+    void dispose_CancelsDeadlineAndCompletes() {
+        properties.setMinSize(3);
+        AdaptiveBatcher disposed = new AdaptiveBatcher("pricing", properties, meterRegistry, timer);
+        StepVerifier.create(disposed.batches())
+                .then(() -> {
+                    disposed.add("BE");
+                    disposed.add("NL");
+                })
+                .expectNextMatches(batch -> batch.equals(List.of("BE")))
+                .then(disposed::dispose)
+                .verifyComplete();
+
+        timer.advanceTimeBy(Duration.ofMillis(50));
+
+        assertEquals(0.0, meterRegistry.get("aggregation.batch.flush").tag("reason", "deadline").counter().count());
+    }
+
+    @Test
+    void requestDeadline_PullsFlushForward() {
+        properties.setMinSize(3);
+        batcher = start();
+
+        batcher.add("BE");
+        batcher.add("NL");
+        batcher.add(new PendingKey("UK", System.nanoTime() + Duration.ofMillis(10).toNanos()));
+        assertEquals(List.of(List.of("BE")), batches);
+
+        timer.advanceTimeBy(Duration.ofMillis(10));
+
+        assertEquals(List.of(List.of("BE"), List.of("NL", "UK")), batches);
+    }
+
+    @Test
+    void expiredRequestDeadline_FlushesImmediately() {
+        properties.setMinSize(3);
+        batcher = start();
+
+        batcher.add("BE");
+        batcher.add("NL");
+        batcher.add(new PendingKey("UK", System.nanoTime()));
+
+        assertEquals(List.of(List.of("BE"), List.of("NL", "UK")), batches);
+    }
+
+    @Test
+    void batch_CarriesEarliestRequestDeadline() {
+        properties.setMinSize(4);
+        properties.setIdleFlush(false);
+        batcher = start();
+        long now = System.nanoTime();
+
+        batcher.add("BE");
+        batcher.add(new PendingKey("NL", now + Duration.ofSeconds(2).toNanos()));
+        batcher.add(new PendingKey("UK", now + Duration.ofSeconds(1).toNanos()));
+        timer.advanceTimeBy(Duration.ofMillis(50));
+        batcher.add("US");
+        timer.advanceTimeBy(Duration.ofMillis(50));
+
+        assertEquals(List.of(List.of("BE", "NL", "UK"), List.of("US")), batches);
+        assertEquals(now + Duration.ofSeconds(1).toNanos(), ((AdaptiveBatcher.Batch) batches.get(0)).deadlineNanos());
+        assertEquals(AdaptiveBatcher.NO_DEADLINE, ((AdaptiveBatcher.Batch) batches.get(1)).deadlineNanos());
+    }
+
+    @Test
+    void withoutIdleFlush_LoneKeyWaitsForDeadline() {
+        properties.setMinSize(3);
+        properties.setIdleFlush(false);
+        batcher = start();
+
+        batcher.add("BE");
+        batcher.add("NL");
+        assertEquals(List.of(), batches);
+
+        timer.advanceTimeBy(Duration.ofMillis(50));
+
+        assertEquals(List.of(List.of("BE", "NL")), batches);
+    }
+
+    @Test
+    void downstreamLatency_ShortensDeadline() {
+        batcher = start();
+
+        batcher.recordLatency(Duration.ofMillis(30).toNanos());
+
+        assertEquals(Duration.ofMillis(20).toNanos(), batcher.targetWaitNanos());
+    }
+
+    private AdaptiveBatcher start() {
+        AdaptiveBatcher started = new AdaptiveBatcher("pricing", properties, meterRegistry, timer);
+        started.batches().subscribe(batches::add);
+        return started;
+    }
+}
@@ -2,23 +2,40 @@ package org.echyrski.aggregation.service;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 
+import org.echyrski.aggregation.config.AggregationProperties;
+import org.echyrski.aggregation.controller.AggregationController;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
-import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.web.reactive.function.client.WebClient;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
+import reactor.util.context.Context;
 
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 
@@ -31,11 +48,19 @@ public class AggregationServiceTest {
     @Mock
     private WebClient webClient;
     @Mock
-    private WebClient.RequestHeadersUriSpec requestHeadersUriSpec;
+    private WebClient.RequestHeadersUriSpec<?> requestHeadersUriSpec;
     @Mock
-    private WebClient.RequestHeadersSpec requestHeadersSpec;
+    private WebClient.RequestHeadersSpec<?> requestHeadersSpec;
     @Mock
     private WebClient.ResponseSpec responseSpec;
+    @Mock
+    private WebClient.RequestBodyUriSpec forwardUriSpec;
+    @Mock
+    private WebClient.RequestBodySpec forwardBodySpec;
+    @Mock
+    private WebClient.RequestHeadersSpec<?> forwardHeadersSpec;
+    @Mock
+    private WebClient.ResponseSpec forwardResponseSpec;
     private AggregationService aggregationService;
 
     @BeforeEach
@@ -44,10 +69,15 @@ public class AggregationServiceTest {
         when(webClientBuilder.baseUrl(anyString())).thenReturn(webClientBuilder);
         when(webClientBuilder.clientConnector(any())).thenReturn(webClientBuilder);
         when(webClientBuilder.build()).thenReturn(webClient);
-        when(webClient.get()).thenReturn(requestHeadersUriSpec);
-        when(requestHeadersUriSpec.uri(anyString(), any(Object[].class))).thenReturn(requestHeadersSpec);
+        doReturn(requestHeadersUriSpec).when(webClient).get();
+        doReturn(requestHeadersSpec).when(requestHeadersUriSpec).uri(anyString(), any(Object[].class));
         when(requestHeadersSpec.retrieve()).thenReturn(responseSpec);
-        aggregationService = new AggregationService(webClientBuilder, "http://localhost:8080/");
+        when(webClient.post()).thenReturn(forwardUriSpec);
+        when(forwardUriSpec.uri(anyString(), any(Object[].class))).thenReturn(forwardBodySpec);
+        when(forwardBodySpec.header(anyString(), any(String[].class))).thenReturn(forwardBodySpec);
+        doReturn(forwardHeadersSpec).when(forwardBodySpec).bodyValue(any());
+        when(forwardHeadersSpec.retrieve()).thenReturn(forwardResponseSpec);
+        aggregationService = new AggregationService(webClientBuilder, "http://localhost:8080/", properties(), objectMapper, new SimpleMeterRegistry());
         aggregationService.init();
     }
 
@@ -60,12 +90,11 @@ public class AggregationServiceTest {
         Map<String, String> expectedOutput = (Map<String, String>) jsonMap.get("output");
 
         // Mock response from WebClient
-        when(responseSpec.bodyToMono(new ParameterizedTypeReference<Map<String, String>>() {
-        }))
-                .thenReturn(Mono.just(expectedOutput));
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(expectedOutput));
 
 
-        Mono<Map<String, Optional<String>>> resultMono = aggregationService.submitTrackRequest(input);
+        Mono<Map<String, Optional<Object>>> resultMono = aggregationService.submitRequest("track", input);
 
         StepVerifier.create(resultMono)
                 .expectNextMatches(response -> response.equals(convertToOptionalMap(expectedOutput)))
@@ -73,9 +102,33 @@ public class AggregationServiceTest {
                 .verify();
     }
 
+    @Test
+    void submitTrackRequest_DuplicateKeys() {
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(Map.of("109347263", "NEW")));
+
+        StepVerifier.create(aggregationService.submitRequest("track", List.of("109347263", "109347263")))
+                .expectNext(Map.of("109347263", Optional.of("NEW")))
+                .expectComplete()
+                .verify(Duration.ofSeconds(1));
+    }
+
+    @Test
+    void streamTrackRequest_Success() {
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(Map.of("109347263", "NEW")));
+
+        StepVerifier.create(aggregationService.streamRequest("track", List.of("109347263", "123456891")).collectList())
+                .expectNextMatches(entries -> entries.size() == 2 &&
+                        entries.contains(Map.entry("109347263", Optional.of("NEW"))) &&
+                        entries.contains(Map.entry("123456891", Optional.empty())))
+                .expectComplete()
+                .verify(Duration.ofSeconds(1));
+    }
+
     @Test
     void submitTrackRequest_EmptyInput() {
-        Mono<Map<String, Optional<String>>> resultMono = aggregationService.submitTrackRequest(List.of());
+        Mono<Map<String, Optional<Object>>> resultMono = aggregationService.submitRequest("track", List.of());
 
         StepVerifier.create(resultMono)
                 .expectNext(Map.of())
@@ -85,7 +138,7 @@ public class AggregationServiceTest {
 
     @Test
     void submitTrackRequest_NullInput() {
-        Mono<Map<String, Optional<String>>> resultMono = aggregationService.submitTrackRequest(null);
+        Mono<Map<String, Optional<Object>>> resultMono = aggregationService.submitRequest("track", null);
 
         StepVerifier.create(resultMono)
                 .expectNext(Map.of())
@@ -102,12 +155,11 @@ public class AggregationServiceTest {
         Map<String, List<String>> expectedOutput = (Map<String, List<String>>) jsonMap.get("output");
 
         // Mock response from WebClient
-        when(responseSpec.bodyToMono(new ParameterizedTypeReference<Map<String, List<String>>>() {
-        }))
-                .thenReturn(Mono.just(expectedOutput));
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(expectedOutput));
 
         aggregationService.init();
-        Mono<Map<String, Optional<List<String>>>> resultMono = aggregationService.submitShipmentRequest(input);
+        Mono<Map<String, Optional<Object>>> resultMono = aggregationService.submitRequest("shipments", input);
 
         StepVerifier.create(resultMono)
                 .expectNextMatches(response -> response.equals(convertToOptionalMap(expectedOutput)))
@@ -117,7 +169,7 @@ public class AggregationServiceTest {
 
     @Test
     void submitShipmentRequest_EmptyInput() {
-        Mono<Map<String, Optional<List<String>>>> resultMono = aggregationService.submitShipmentRequest(List.of());
+        Mono<Map<String, Optional<Object>>> resultMono = aggregationService.submitRequest("shipments", List.of());
 
         StepVerifier.create(resultMono)
                 .expectNext(Map.of())
@@ -127,7 +179,7 @@ public class AggregationServiceTest {
 
     @Test
     void submitShipmentRequest_NullInput() {
-        Mono<Map<String, Optional<List<String>>>> resultMono = aggregationService.submitShipmentRequest(null);
+        Mono<Map<String, Optional<Object>>> resultMono = aggregationService.submitRequest("shipments", null);
 
         StepVerifier.create(resultMono)
                 .expectNext(Map.of())
@@ -144,12 +196,11 @@ public class AggregationServiceTest {
         Map<String, Double> expectedOutput = (Map<String, Double>) jsonMap.get("output");
 
         // Mock response from WebClient
-        when(responseSpec.bodyToMono(new ParameterizedTypeReference<Map<String, Double>>() {
-        }))
-                .thenReturn(Mono.just(expectedOutput));
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(expectedOutput));
 
         aggregationService.init();
-        Mono<Map<String, Optional<Double>>> resultMono = aggregationService.submitPricingRequest(input);
+        Mono<Map<String, Optional<Object>>> resultMono = aggregationService.submitRequest("pricing", input);
 
         StepVerifier.create(resultMono)
                 .expectNextMatches(response -> response.equals(convertToOptionalMap(expectedOutput)))
@@ -166,12 +217,11 @@ public class AggregationServiceTest {
         Map<String, Double> expectedOutput = (Map<String, Double>) jsonMap.get("output");
 
         // Mock response from WebClient
-        when(responseSpec.bodyToMono(new ParameterizedTypeReference<Map<String, Double>>() {
-        }))
-                .thenReturn(Mono.error(new IOException()));
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(Flux.error(new IOException()));
 
         aggregationService.init();
-        Mono<Map<String, Optional<Double>>> resultMono = aggregationService.submitPricingRequest(input);
+        Mono<Map<String, Optional<Object>>> resultMono = aggregationService.submitRequest("pricing", input);
 
         StepVerifier.create(resultMono)
                 .expectNextMatches(response -> response.equals(convertToOptionalMap(expectedOutput)))
@@ -179,9 +229,387 @@ public class AggregationServiceTest {
                 .verify();
     }
 
+    @Test
+    void submitPricingRequest_CoalescesInFlightKeys() {
+        // Keep the first batch in flight long enough for the second request to attach to it
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(Map.of("NL", 100.0)).delaySubscription(Duration.ofMillis(500)));
+
+        Mono<Map<String, Optional<Object>>> first = aggregationService.submitRequest("pricing", List.of("NL"));
+        Mono<Map<String, Optional<Object>>> second = aggregationService.submitRequest("pricing", List.of("NL"));
+
+        StepVerifier.create(Mono.zip(first, second))
+                .expectNextMatches(tuple -> tuple.getT1().equals(Map.of("NL", Optional.of(100.0))) &&
+                        tuple.getT2().equals(Map.of("NL", Optional.of(100.0))))
+                .expectComplete()
+                .verify();
+        verify(requestHeadersUriSpec, times(1)).uri(eq("/pricing?q={queries}"), any(Object[].class));
+    }
+
+    @Test
+    void submitPricingRequest_InteractiveOvertakesBulkPendingKey() {
+        AggregationProperties properties = properties();
+        properties.getApis().get("pricing").getBulkBatching().setLatencyBudget(Duration.ofSeconds(5));
+        AggregationService laneService = new AggregationService(webClientBuilder, "http://localhost:8080/", properties, objectMapper, new SimpleMeterRegistry());
+        laneService.init();
+        when(responseSpec.bodyToFlux(DataBuffer.class)).thenReturn(json(Map.of("NL", 100.0)));
+
+        // NL waits for the flush of the bulk lane, seconds away, when an interactive request asks for it
+        Mono<Map<String, Optional<Object>>> bulk = laneService.submitRequest("pricing", List.of("NL"), Duration.ofSeconds(10), Priority.BULK);
+        StepVerifier.create(laneService.submitRequest("pricing", List.of("NL"), Duration.ofSeconds(10), Priority.INTERACTIVE))
+                .expectNext(Map.of("NL", Optional.of(100.0)))
+                .expectComplete()
+                .verify(Duration.ofMillis(500));
+        // The bulk request is answered by the interactive batch as well
+        StepVerifier.create(bulk)
+                .expectNext(Map.of("NL", Optional.of(100.0)))
+                .expectComplete()
+                .verify(Duration.ofMillis(100));
+        verify(requestHeadersUriSpec, times(1)).uri(eq("/pricing?q={queries}"), any(Object[].class));
+        laneService.dispose();
+    }
+
+    @Test
+    void submitPricingRequest_ServedFromCache() {
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(Map.of("NL", 100.0)));
+        Map<String, Optional<Object>> expected = new HashMap<>();
+        expected.put("NL", Optional.of(100.0));
+        expected.put("XX", Optional.empty());
+
+        StepVerifier.create(aggregationService.submitRequest("pricing", List.of("NL", "XX")))
+                .expectNext(expected)
+                .expectComplete()
+                .verify();
+        clearInvocations(requestHeadersUriSpec);
+
+        // Both the present and the missing key are answered from the cache without another batch
+        StepVerifier.create(aggregationService.submitRequest("pricing", List.of("NL", "XX")))
+                .expectNext(expected)
+                .expectComplete()
+                .verify(Duration.ofSeconds(1));
+        verify(requestHeadersUriSpec, never()).uri(eq("/pricing?q={queries}"), any(Object[].class));
+    }
+
+    @Test
+    void submitPricingRequest_QueueOverflow() {
+        AggregationProperties properties = properties();
+        properties.getApis().get("pricing").getBatching().setQueueCapacity(0);
+        AggregationService overflowingService = new AggregationService(webClientBuilder, "http://localhost:8080/", properties, objectMapper, new SimpleMeterRegistry());
+        overflowingService.init();
+
+        assertFalse(overflowingService.isSaturated(Map.of("pricing", List.of("NL")), null));
+        StepVerifier.create(overflowingService.submitRequest("pricing", List.of("NL")))
+                .expectNext(Map.of("NL", Optional.empty()))
+                .expectComplete()
+                .verify(Duration.ofSeconds(1));
+        verify(requestHeadersUriSpec, never()).uri(eq("/pricing?q={queries}"), any(Object[].class));
+    }
+
+    @Test
+    void submitPricingRequest_DeadlineReturnsPartialResult() {
+        AggregationProperties properties = properties();
+        properties.getApis().get("pricing").getCache().setTtl(Duration.ofMinutes(1));
+        AggregationService deadlineService = new AggregationService(webClientBuilder, "http://localhost:8080/", properties, objectMapper, new SimpleMeterRegistry());
+        deadlineService.init();
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(Map.of("NL", 100.0)))
+                .thenReturn(json(Map.of("UK", 200.0)).delaySubscription(Duration.ofSeconds(5)));
+        StepVerifier.create(deadlineService.submitRequest("pricing", List.of("NL")))
+                .expectNext(Map.of("NL", Optional.of(100.0)))
+                .expectComplete()
+                .verify();
+
+        // NL is answered from the cache, UK is still in flight when the deadline passes
+        StepVerifier.create(deadlineService.submitRequest("pricing", List.of("NL", "UK"), Duration.ofMillis(200), null))
+                .expectNext(Map.of("NL", Optional.of(100.0), "UK", Optional.empty()))
+                .expectComplete()
+                .verify(Duration.ofSeconds(1));
+    }
+
+    @Test
+    void submitPricingRequest_OpenCircuitFailsFast() {
+        AggregationProperties properties = properties();
+        properties.getApis().get("pricing").getRetry().setMaxAttempts(1);
+        properties.getApis().get("pricing").getCircuitBreaker().setMinimumCalls(1);
+        AggregationService failingService = new AggregationService(webClientBuilder, "http://localhost:8080/", properties, objectMapper, new SimpleMeterRegistry());
+        failingService.init();
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(Flux.error(new IOException()));
+        StepVerifier.create(failingService.submitRequest("pricing", List.of("NL")))
+                .expectNext(Map.of("NL", Optional.empty()))
+                .expectComplete()
+                .verify();
+        clearInvocations(requestHeadersUriSpec);
+
+        StepVerifier.create(failingService.submitRequest("pricing", List.of("UK")))
+                .expectNext(Map.of("UK", Optional.empty()))
+                .expectComplete()
+                .verify(Duration.ofSeconds(1));
+        verify(requestHeadersUriSpec, never()).uri(eq("/pricing?q={queries}"), any(Object[].class));
+    }
+
+    @Test
+    void submitRequest_BindsAnswersWithGivenObjectMapper() {
+        AggregationProperties properties = properties();
+        properties.getApis().put("eta", new AggregationProperties.Api("/eta?q={queries}", "java.time.LocalDate", new AggregationProperties.Cache()));
+        // java.time needs the module the application mapper registers, a default mapper cannot bind it
+        AggregationService etaService = new AggregationService(webClientBuilder, "http://localhost:8080/", properties,
+                new ObjectMapper().findAndRegisterModules(), new SimpleMeterRegistry());
+        etaService.init();
+        when(responseSpec.bodyToFlux(DataBuffer.class)).thenReturn(json(Map.of("109347263", "2024-05-01")));
+
+        StepVerifier.create(etaService.submitRequest("eta", List.of("109347263")))
+                .expectNext(Map.of("109347263", Optional.of(LocalDate.of(2024, 5, 1))))
+                .expectComplete()
+                .verify();
+        etaService.dispose();
+    }
+
+    @Test
+    void submitPricingRequest_RecordsMetrics() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        AggregationService meteredService = new AggregationService(webClientBuilder, "http://localhost:8080/", properties(), objectMapper, meterRegistry);
+        meteredService.init();
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(Map.of("NL", 100.0)));
+
+        StepVerifier.create(meteredService.submitRequest("pricing", List.of("NL")))
+                .expectNextCount(1)
+                .expectComplete()
+                .verify();
+
+        // Keys are answered as they are parsed, the request and call meters are recorded right after
+        await().atMost(Duration.ofSeconds(1)).untilAsserted(() -> {
+            assertEquals(1, meterRegistry.get("aggregation.request.latency").tags("api", "pricing", "priority", "interactive").timer().count());
+            assertEquals(1, meterRegistry.get("aggregation.downstream.latency").tags("api", "pricing", "outcome", "success").timer().count());
+        });
+        assertEquals(1, meterRegistry.get("aggregation.batch.wait").tags("api", "pricing", "priority", "interactive").timer().count());
+        assertEquals(1.0, meterRegistry.get("cache.gets").tags("cache", "pricing", "result", "miss").functionCounter().count());
+    }
+
+    @Test
+    void submitRequest_RegisteredApi() {
+        AggregationProperties properties = properties();
+        properties.getApis().put("stock", new AggregationProperties.Api("/stock?q={queries}", "java.lang.Integer",
+                new AggregationProperties.Cache()));
+        AggregationService stockService = new AggregationService(webClientBuilder, "http://localhost:8080/", properties, objectMapper, new SimpleMeterRegistry());
+        stockService.init();
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(Map.of("NL", 7)));
+
+        StepVerifier.create(stockService.submitRequest("stock", List.of("NL")))
+                .expectNext(Map.of("NL", Optional.of(7)))
+                .expectComplete()
+                .verify(Duration.ofSeconds(1));
+        verify(requestHeadersUriSpec).uri(eq("/stock?q={queries}"), any(Object[].class));
+        assertEquals(List.of("pricing", "track", "shipments", "stock"), List.copyOf(stockService.apis()));
+    }
+
+    @Test
+    void submitRequest_ShardedKeys() {
+        AggregationProperties properties = properties();
+        properties.getApis().get("pricing").setShards(4);
+        AggregationService shardedService = new AggregationService(webClientBuilder, "http://localhost:8080/", properties, objectMapper, new SimpleMeterRegistry());
+        shardedService.init();
+        Map<String, Object> prices = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            prices.put("K" + i, (double) i);
+        }
+        // Every call is answered with all prices, only the keys of its own shard are taken from it
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(prices));
+
+        StepVerifier.create(shardedService.submitRequest("pricing", List.copyOf(prices.keySet())))
+                .expectNext(convertToOptionalMap(prices))
+                .expectComplete()
+                .verify(Duration.ofSeconds(1));
+        verify(requestHeadersUriSpec, atLeast(2)).uri(eq("/pricing?q={queries}"), any(Object[].class));
+    }
+
+    @Test
+    void submitRequest_SplitsBatchByQueryBytes() {
+        AggregationProperties properties = properties();
+        AggregationProperties.Api pricing = properties.getApis().get("pricing");
+        pricing.setShards(1);
+        pricing.setMaxQueryBytes(10);
+        pricing.setBatching(new AggregationProperties.Batching(4, Duration.ofSeconds(1), 100, 10, false));
+        AggregationService splittingService = new AggregationService(webClientBuilder, "http://localhost:8080/", properties, objectMapper, new SimpleMeterRegistry());
+        splittingService.init();
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(Map.of("NL", 1.0, "UK", 2.0, "US", 3.0, "DE", 4.0)));
+
+        // One batch of four keys, sent as two calls of two keys and merged back into one answer
+        StepVerifier.create(splittingService.submitRequest("pricing", List.of("NL", "UK", "US", "DE")))
+                .expectNext(Map.of("NL", Optional.of(1.0), "UK", Optional.of(2.0), "US", Optional.of(3.0), "DE", Optional.of(4.0)))
+                .expectComplete()
+                .verify(Duration.ofSeconds(2));
+        // The first call answers every key, the second one may still be on its way out
+        verify(requestHeadersUriSpec, timeout(1000).times(2)).uri(eq("/pricing?q={queries}"), any(Object[].class));
+    }
+
+    @Test
+    void submitRequest_ForwardsKeysToOwner() {
+        AggregationProperties properties = clusterProperties();
+        AggregationService clusterService = new AggregationService(webClientBuilder, "http://localhost:8080/", properties, objectMapper, new SimpleMeterRegistry());
+        clusterService.init();
+        Map<String, Object> prices = prices(20);
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(prices));
+        when(forwardResponseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(prices));
+
+        StepVerifier.create(clusterService.submitRequest("pricing", List.copyOf(prices.keySet())))
+                .expectNext(convertToOptionalMap(prices))
+                .expectComplete()
+                .verify(Duration.ofSeconds(2));
+        ClusterRing ring = new ClusterRing(properties.getCluster());
+        List<String> owned = prices.keySet().stream()
+                .filter(key -> ring.owner("pricing", key) != null)
+                .sorted()
+                .toList();
+        ArgumentCaptor<List<String>> forwarded = ArgumentCaptor.forClass(List.class);
+        verify(forwardUriSpec, atLeastOnce()).uri(eq("http://replica-b:8080/internal/aggregation/{api}"), eq("pricing"));
+        verify(forwardBodySpec, atLeastOnce()).bodyValue(forwarded.capture());
+        assertEquals(owned, forwarded.getAllValues().stream().flatMap(List::stream).sorted().toList());
+        // The owner is given what is left of the request deadline, not the margin of the cluster
+        ArgumentCaptor<String> deadlines = ArgumentCaptor.forClass(String.class);
+        verify(forwardBodySpec, atLeastOnce()).header(eq(AggregationController.DEADLINE_HEADER), deadlines.capture());
+        assertTrue(deadlines.getAllValues().stream().mapToLong(Long::parseLong).allMatch(deadline -> deadline > 4000 && deadline <= 5000),
+                deadlines.getAllValues()::toString);
+    }
+
+    @Test
+    void submitRequest_KeysLeftOutByOwnerBatchedLocally() {
+        AggregationProperties properties = clusterProperties();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        AggregationService clusterService = new AggregationService(webClientBuilder, "http://localhost:8080/", properties, objectMapper, meterRegistry);
+        clusterService.init();
+        Map<String, Object> prices = prices(20);
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(prices));
+        // The owner ran out of time for every key
+        when(forwardResponseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(Map.of()));
+
+        StepVerifier.create(clusterService.submitRequest("pricing", List.copyOf(prices.keySet())))
+                .expectNext(convertToOptionalMap(prices))
+                .expectComplete()
+                .verify(Duration.ofSeconds(2));
+        assertTrue(meterRegistry.get("aggregation.cluster.fallback").tag("api", "pricing").counter().count() > 0);
+    }
+
+    @Test
+    void submitRequest_UnreachableOwnerBatchedLocally() {
+        AggregationProperties properties = clusterProperties();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        AggregationService clusterService = new AggregationService(webClientBuilder, "http://localhost:8080/", properties, objectMapper, meterRegistry);
+        clusterService.init();
+        Map<String, Object> prices = prices(20);
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(prices));
+        when(forwardResponseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(Flux.error(new ConnectException("Connection refused")));
+
+        StepVerifier.create(clusterService.submitRequest("pricing", List.copyOf(prices.keySet())))
+                .expectNext(convertToOptionalMap(prices))
+                .expectComplete()
+                .verify(Duration.ofSeconds(2));
+        assertTrue(meterRegistry.get("aggregation.cluster.fallback").tag("api", "pricing").counter().count() > 0);
+    }
+
+    @Test
+    void submitForwardedRequest_LeavesOutExpiredKeys() {
+        // NL is answered right away, UK only after the deadline of the forwarded keys
+        when(responseSpec.bodyToFlux(DataBuffer.class)).thenAnswer(invocation -> Flux.concat(
+                Flux.just(DefaultDataBufferFactory.sharedInstance.wrap("{\"NL\":1.0,".getBytes(StandardCharsets.UTF_8))),
+                Mono.delay(Duration.ofSeconds(2)).map(delay -> DefaultDataBufferFactory.sharedInstance.wrap("\"UK\":2.0}".getBytes(StandardCharsets.UTF_8)))));
+
+        StepVerifier.create(aggregationService.submitForwardedRequest("pricing", List.of("NL", "UK"), Duration.ofMillis(300), null))
+                .expectNext(Map.of("NL", Optional.of(1.0)))
+                .expectComplete()
+                .verify(Duration.ofSeconds(1));
+    }
+
+    @Test
+    void submitForwardedRequest_BatchedLocally() {
+        AggregationProperties properties = clusterProperties();
+        AggregationService clusterService = new AggregationService(webClientBuilder, "http://localhost:8080/", properties, objectMapper, new SimpleMeterRegistry());
+        clusterService.init();
+        Map<String, Object> prices = prices(20);
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(prices));
+
+        // The keys are answered here even where the ring of this replica names another owner
+        StepVerifier.create(clusterService.submitForwardedRequest("pricing", List.copyOf(prices.keySet()), Duration.ofSeconds(1), null))
+                .expectNext(convertToOptionalMap(prices))
+                .expectComplete()
+                .verify(Duration.ofSeconds(2));
+        verify(webClient, never()).post();
+    }
+
+    @Test
+    void submitPricingRequest_RecordsTimingsInContext() {
+        when(responseSpec.bodyToFlux(DataBuffer.class))
+                .thenReturn(json(Map.of("NL", 1.0)).delaySubscription(Duration.ofMillis(50)));
+        RequestTimings timings = new RequestTimings();
+
+        StepVerifier.create(aggregationService.submitRequest("pricing", List.of("NL"))
+                        .contextWrite(Context.of(RequestTimings.class, timings)))
+                .expectNext(Map.of("NL", Optional.of(1.0)))
+                .expectComplete()
+                .verify(Duration.ofSeconds(1));
+        RequestTimings.Timing timing = timings.timings().get("pricing");
+        assertTrue(timing.downstreamNanos() >= Duration.ofMillis(50).toNanos(), timing::toString);
+        assertEquals(timing.totalNanos(), timing.waitNanos() + timing.downstreamNanos());
+    }
+
+    @Test
+    void submitPricingRequest_EmitsFlightRecorderEvents() {
+        List<RecordedEvent> events = new CopyOnWriteArrayList<>();
+        try (RecordingStream recording = new RecordingStream()) {
+            for (String event : List.of("Request", "BatchFlush", "BatchDispatch", "DownstreamCall")) {
+                recording.enable("org.echyrski.aggregation." + event);
+            }
+            recording.onEvent(events::add);
+            recording.startAsync();
+            when(responseSpec.bodyToFlux(DataBuffer.class))
+                    .thenReturn(json(Map.of("NL", 1.0, "UK", 2.0)));
+
+            StepVerifier.create(aggregationService.submitRequest("pricing", List.of("NL", "UK")))
+                    .expectNextCount(1)
+                    .expectComplete()
+                    .verify(Duration.ofSeconds(1));
+            await().atMost(Duration.ofSeconds(10)).until(() -> events.stream()
+                    .map(event -> event.getEventType().getName())
+                    .distinct()
+                    .count() == 4);
+        }
+        RecordedEvent request = event(events, "Request");
+        assertEquals("pricing", request.getString("api"));
+        assertEquals(2, request.getInt("keys"));
+        // Flush, dispatch and call of a batch share its id
+        long batchId = event(events, "BatchFlush").getLong("batchId");
+        assertEquals(batchId, event(events, "BatchDispatch").getLong("batchId"));
+        assertEquals(batchId, event(events, "DownstreamCall").getLong("batchId"));
+        assertEquals("success", event(events, "BatchDispatch").getString("outcome"));
+    }
+
+    @Test
+    void submitRequest_UnknownApi() {
+        assertThrows(IllegalArgumentException.class, () -> aggregationService.submitRequest("stock", List.of("NL")));
+    }
+
+    @Test
+    void deadline_CappedByMaximum() {
+        assertEquals(Duration.ofSeconds(5), aggregationService.deadline(null));
+        assertEquals(Duration.ofMillis(250), aggregationService.deadline(250L));
+        assertEquals(Duration.ofSeconds(30), aggregationService.deadline(60_000L));
+    }
+
     @Test
     void submitPricingRequest_EmptyInput() {
-        Mono<Map<String, Optional<Double>>> resultMono = aggregationService.submitPricingRequest(List.of());
+        Mono<Map<String, Optional<Object>>> resultMono = aggregationService.submitRequest("pricing", List.of());
 
         StepVerifier.create(resultMono)
                 .expectNext(Map.of())
@@ -191,7 +619,7 @@ public class AggregationServiceTest {
 
     @Test
     void submitPricingRequest_NullInput() {
-        Mono<Map<String, Optional<Double>>> resultMono = aggregationService.submitPricingRequest(null);
+        Mono<Map<String, Optional<Object>>> resultMono = aggregationService.submitRequest("pricing", null);
 
         StepVerifier.create(resultMono)
                 .expectNext(Map.of())
@@ -199,6 +627,50 @@ public class AggregationServiceTest {
                 .verify();
     }
 
+    private static AggregationProperties properties() {
+        AggregationProperties properties = new AggregationProperties();
+        properties.getApis().put("pricing", new AggregationProperties.Api("/pricing?q={queries}", "java.lang.Double",
+                new AggregationProperties.Cache(Duration.ofMinutes(5), Duration.ofSeconds(30), 10_000)));
+        properties.getApis().put("track", new AggregationProperties.Api("/track?q={queries}", "java.lang.String",
+                new AggregationProperties.Cache()));
+        properties.getApis().put("shipments", new AggregationProperties.Api("/shipments?q={queries}", "java.util.List<java.lang.String>",
+                new AggregationProperties.Cache()));
+        return properties;
+    }
+
+    private static RecordedEvent event(List<RecordedEvent> events, String name) {
+        return events.stream()
+                .filter(event -> event.getEventType().getName().equals("org.echyrski.aggregation." + name))
+                .findFirst()
+                .orElseThrow();
+    }
+
+    private static AggregationProperties clusterProperties() {
+        AggregationProperties properties = properties();
+        properties.getCluster().setEnabled(true);
+        properties.getCluster().setSelf("http://replica-a:8080");
+        properties.getCluster().setPeers(List.of("http://replica-a:8080", "http://replica-b:8080/"));
+        return properties;
+    }
+
+    private static Map<String, Object> prices(int count) {
+        Map<String, Object> prices = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            prices.put("K" + i, (double) i);
+        }
+        return prices;
+    }
+
+    private Flux<DataBuffer> json(Map<String, ?> body) {
+        return Flux.defer(() -> {
+            try {
+                return Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(objectMapper.writeValueAsBytes(body)));
+            } catch (IOException e) {
+                return Flux.error(e);
+            }
+        });
+    }
+
     private <T> Map<String, Optional<T>> convertToOptionalMap(Map<String, T> map) {
         return map.entrySet().stream()
                 .collect(Collectors.toMap(Map.Entry::getKey, e -> Optional.ofNullable(e.getValue())));
@@ -0,0 +1,78 @@
+package org.echyrski.aggregation.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+public class BatchResponseDecoderTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void decode_FieldsSplitAcrossBuffers() {
+        BatchResponseDecoder<List<String>> decoder = new BatchResponseDecoder<>(objectMapper,
+                objectMapper.constructType(new TypeReference<List<String>>() {
+                }));
+
+        StepVerifier.create(decoder.decode(chunks("{\"1\":[\"box\",\"pallet\"],\"2\":null,\"3\":[]}", 1)))
+                .expectNext(entry("1", List.of("box", "pallet")))
+                .expectNext(entry("2", null))
+                .expectNext(entry("3", List.of()))
+                .expectComplete()
+                .verify();
+    }
+
+    @Test
+    void decode_ScalarValues() {
+        BatchResponseDecoder<Double> decoder = new BatchResponseDecoder<>(objectMapper, objectMapper.constructType(Double.class));
+
+        StepVerifier.create(decoder.decode(chunks("{\"NL\": 14.24, \"UK\": 3}", 5)))
+                .expectNext(entry("NL", 14.24))
+                .expectNext(entry("UK", 3.0))
+                .expectComplete()
+                .verify();
+    }
+
+    @Test
+    void decode_TruncatedBody() {
+        BatchResponseDecoder<String> decoder = new BatchResponseDecoder<>(objectMapper, objectMapper.constructType(String.class));
+
+        StepVerifier.create(decoder.decode(chunks("{\"1\":\"NEW\",\"2\":", 4)))
+                .expectNext(entry("1", "NEW"))
+                .expectError(DecodingException.class)
+                .verify();
+    }
+
+    @Test
+    void decode_NotAnObject() {
+        BatchResponseDecoder<String> decoder = new BatchResponseDecoder<>(objectMapper, objectMapper.constructType(String.class));
+
+        StepVerifier.create(decoder.decode(chunks("[\"NEW\"]", 16)))
+                .expectError(DecodingException.class)
+                .verify();
+    }
+
+    private static Flux<DataBuffer> chunks(String json, int chunkSize) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return Flux.range(0, (bytes.length + chunkSize - 1) / chunkSize)
+                .map(chunk -> DefaultDataBufferFactory.sharedInstance.wrap(
+                        Arrays.copyOfRange(bytes, chunk * chunkSize, Math.min(bytes.length, (chunk + 1) * chunkSize))));
+    }
+
+    private static <T> Map.Entry<String, T> entry(String key, T value) {
+        return new AbstractMap.SimpleImmutableEntry<>(key, value);
+    }
+}
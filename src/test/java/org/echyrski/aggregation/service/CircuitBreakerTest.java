@@ -0,0 +1,105 @@
+package org.echyrski.aggregation.service;
+
+import java.time.Duration;
+
+import org.echyrski.aggregation.config.AggregationProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CircuitBreakerTest {
+
+    private static final long FAST = Duration.ofMillis(10).toNanos();
+    private static final long SLOW = Duration.ofSeconds(3).toNanos();
+
+    private AggregationProperties.CircuitBreaker properties;
+
+    @BeforeEach
+    void setUp() {
+        properties = new AggregationProperties.CircuitBreaker();
+        properties.setWindowSize(4);
+        properties.setMinimumCalls(4);
+    }
+
+    @Test
+    void failureRateAboveThreshold_OpensCircuit() {
+        CircuitBreaker circuit = create();
+
+        circuit.onSuccess(CircuitBreaker.Permit.CALL, FAST);
+        circuit.onSuccess(CircuitBreaker.Permit.CALL, FAST);
+        circuit.onFailure(CircuitBreaker.Permit.CALL, FAST);
+        assertEquals(CircuitBreaker.State.CLOSED, circuit.state());
+
+        circuit.onFailure(CircuitBreaker.Permit.CALL, FAST);
+
+        assertEquals(CircuitBreaker.State.OPEN, circuit.state());
+        assertFalse(circuit.isCallPermitted());
+        assertEquals(CircuitBreaker.Permit.DENIED, circuit.tryAcquire());
+    }
+
+    @Test
+    void slowCalls_OpenCircuit() {
+        CircuitBreaker circuit = create();
+
+        for (int i = 0; i < 4; i++) {
+            circuit.onSuccess(CircuitBreaker.Permit.CALL, SLOW);
+        }
+
+        assertEquals(CircuitBreaker.State.OPEN, circuit.state());
+    }
+
+    @Test
+    void halfOpenProbe_ClosesCircuitOnSuccess() {
+        properties.setOpenDuration(Duration.ZERO);
+        CircuitBreaker circuit = create();
+        for (int i = 0; i < 4; i++) {
+            circuit.onFailure(CircuitBreaker.Permit.CALL, FAST);
+        }
+
+        assertEquals(CircuitBreaker.Permit.PROBE, circuit.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuit.state());
+        assertEquals(CircuitBreaker.Permit.DENIED, circuit.tryAcquire());
+
+        circuit.onSuccess(CircuitBreaker.Permit.PROBE, FAST);
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuit.state());
+        assertEquals(CircuitBreaker.Permit.CALL, circuit.tryAcquire());
+    }
+
+    @Test
+    void halfOpenProbe_ReopensCircuitOnFailure() {
+        properties.setOpenDuration(Duration.ZERO);
+        CircuitBreaker circuit = create();
+        for (int i = 0; i < 4; i++) {
+            circuit.onFailure(CircuitBreaker.Permit.CALL, FAST);
+        }
+        assertEquals(CircuitBreaker.Permit.PROBE, circuit.tryAcquire());
+
+        circuit.onFailure(CircuitBreaker.Permit.PROBE, FAST);
+
+        assertEquals(CircuitBreaker.State.OPEN, circuit.state());
+    }
+
+    @Test
+    void halfOpen_LateCallsIgnored() {
+        properties.setOpenDuration(Duration.ZERO);
+        CircuitBreaker circuit = create();
+        for (int i = 0; i < 4; i++) {
+            circuit.onFailure(CircuitBreaker.Permit.CALL, FAST);
+        }
+        assertEquals(CircuitBreaker.Permit.PROBE, circuit.tryAcquire());
+
+        // Dispatched before the circuit opened
+        circuit.onSuccess(CircuitBreaker.Permit.CALL, FAST);
+
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuit.state());
+        assertEquals(CircuitBreaker.Permit.DENIED, circuit.tryAcquire());
+    }
+
+    private CircuitBreaker create() {
+        return new CircuitBreaker("pricing", properties, new SimpleMeterRegistry());
+    }
+}
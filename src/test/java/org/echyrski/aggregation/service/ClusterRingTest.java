@@ -0,0 +1,100 @@
+package org.echyrski.aggregation.service;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.echyrski.aggregation.config.AggregationProperties;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterRingTest {
+
+    private static final List<String> REPLICAS = List.of("http://a:8080", "http://b:8080", "http://c:8080");
+
+    @Test
+    void owner_DisabledIsLocal() {
+        ClusterRing ring = new ClusterRing(new AggregationProperties.Cluster());
+
+        assertNull(ring.owner("pricing", "NL"));
+        assertTrue(ring.peers().isEmpty());
+    }
+
+    @Test
+    void owner_ReplicasAgree() {
+        ClusterRing a = ring("http://a:8080", REPLICAS);
+        ClusterRing b = ring("http://b:8080/", List.of("http://c:8080", "http://a:8080/"));
+        ClusterRing c = ring("http://c:8080", List.of("http://b:8080", "http://a:8080"));
+
+        assertEquals(List.of("http://b:8080", "http://c:8080"), a.peers());
+        for (int i = 0; i < 1_000; i++) {
+            String key = "K" + i;
+            String owner = owner(a, "http://a:8080", key);
+            assertEquals(owner, owner(b, "http://b:8080", key));
+            assertEquals(owner, owner(c, "http://c:8080", key));
+        }
+    }
+
+    @Test
+    void owner_SpreadsKeys() {
+        ClusterRing ring = ring("http://a:8080", REPLICAS);
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < 3_000; i++) {
+            owned.merge(owner(ring, "http://a:8080", "K" + i), 1, Integer::sum);
+        }
+
+        assertEquals(3, owned.size());
+        owned.values().forEach(keys -> assertTrue(keys > 750 && keys < 1_250, owned::toString));
+    }
+
+    @Test
+    void owner_RemovedReplicaMovesOnlyItsKeys() {
+        ClusterRing three = ring("http://a:8080", REPLICAS);
+        ClusterRing two = ring("http://a:8080", List.of("http://a:8080", "http://b:8080"));
+
+        for (int i = 0; i < 1_000; i++) {
+            String owner = owner(three, "http://a:8080", "K" + i);
+            if (!owner.equals("http://c:8080")) {
+                assertEquals(owner, owner(two, "http://a:8080", "K" + i));
+            }
+        }
+    }
+
+    @Test
+    void isAvailable_SkippedForRetryInterval() {
+        AggregationProperties.Cluster properties = properties("http://a:8080", REPLICAS);
+        properties.setRetryInterval(Duration.ofMinutes(1));
+        ClusterRing ring = new ClusterRing(properties);
+
+        ring.markUnavailable("http://b:8080");
+
+        assertFalse(ring.isAvailable("http://b:8080"));
+        assertTrue(ring.isAvailable("http://c:8080"));
+    }
+
+    @Test
+    void init_EnabledWithoutSelf() {
+        AggregationProperties.Cluster properties = properties(null, REPLICAS);
+
+        assertThrows(IllegalArgumentException.class, () -> new ClusterRing(properties));
+    }
+
+    private static ClusterRing ring(String self, List<String> peers) {
+        return new ClusterRing(properties(self, peers));
+    }
+
+    private static AggregationProperties.Cluster properties(String self, List<String> peers) {
+        AggregationProperties.Cluster properties = new AggregationProperties.Cluster();
+        properties.setEnabled(true);
+        properties.setSelf(self);
+        properties.setPeers(peers);
+        return properties;
+    }
+
+    private static String owner(ClusterRing ring, String self, String key) {
+        String owner = ring.owner("pricing", key);
+        return owner == null ? self : owner;
+    }
+}
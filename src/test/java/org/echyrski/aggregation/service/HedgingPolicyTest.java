@@ -0,0 +1,89 @@
+package org.echyrski.aggregation.service;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.echyrski.aggregation.config.AggregationProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HedgingPolicyTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AtomicInteger attempts = new AtomicInteger();
+    private final AtomicBoolean firstCancelled = new AtomicBoolean();
+    private AggregationProperties.Hedging properties;
+
+    @BeforeEach
+    void setUp() {
+        properties = new AggregationProperties.Hedging();
+        properties.setEnabled(true);
+        properties.setWindowSize(100);
+        properties.setMinimumCalls(10);
+    }
+
+    @Test
+    void delay_IsPercentileOfRecentLatencies() {
+        HedgingPolicy hedging = new HedgingPolicy("track", properties, meterRegistry);
+
+        for (int millis = 1; millis <= 100; millis++) {
+            hedging.record(Duration.ofMillis(millis).toNanos());
+            if (millis < 10) {
+                assertEquals(-1, hedging.delayNanos());
+            }
+        }
+
+        assertEquals(Duration.ofMillis(95).toNanos(), hedging.delayNanos());
+    }
+
+    @Test
+    void slowAttempt_HedgeWinsAndAttemptIsCancelled() {
+        HedgingPolicy hedging = warmedUp();
+
+        StepVerifier.create(hedging.hedge(firstNeverAnswers()))
+                .expectComplete()
+                .verify(Duration.ofSeconds(1));
+
+        assertEquals(2, attempts.get());
+        assertTrue(firstCancelled.get());
+        assertEquals(1.0, meterRegistry.get("aggregation.downstream.hedges").counter().count());
+        assertEquals(1.0, meterRegistry.get("aggregation.downstream.hedges.won").counter().count());
+    }
+
+    @Test
+    void spentBudget_SendsNoHedge() {
+        properties.setBudgetRatio(0);
+        properties.setBudgetCapacity(0);
+        HedgingPolicy hedging = warmedUp();
+
+        StepVerifier.create(hedging.hedge(firstNeverAnswers()))
+                .expectSubscription()
+                .expectNoEvent(Duration.ofMillis(100))
+                .thenCancel()
+                .verify();
+
+        assertEquals(1, attempts.get());
+        assertEquals(1.0, meterRegistry.get("aggregation.downstream.hedges.denied").counter().count());
+    }
+
+    private HedgingPolicy warmedUp() {
+        HedgingPolicy hedging = new HedgingPolicy("track", properties, meterRegistry);
+        for (int i = 0; i < 10; i++) {
+            hedging.record(Duration.ofMillis(1).toNanos());
+        }
+        return hedging;
+    }
+
+    private Mono<Void> firstNeverAnswers() {
+        return Mono.defer(() -> attempts.incrementAndGet() == 1
+                ? Mono.<Void>never().doOnCancel(() -> firstCancelled.set(true))
+                : Mono.empty());
+    }
+}
@@ -0,0 +1,45 @@
+package org.echyrski.aggregation.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IngestionQueueTest {
+
+    private final List<Runnable> drains = new ArrayList<>();
+    private final Scheduler scheduler = Schedulers.fromExecutor(drains::add);
+    private final List<String> consumed = new ArrayList<>();
+
+    @Test
+    void drain_TakesEarlierLanesFirst() {
+        IngestionQueue<String> queue = new IngestionQueue<>(new int[]{10, 10}, consumed::add, scheduler);
+
+        queue.offer("bulk-1", 1);
+        queue.offer("bulk-2", 1);
+        queue.offer("interactive-1", 0);
+        queue.offer("interactive-2", 0);
+        drains.forEach(Runnable::run);
+
+        assertEquals(List.of("interactive-1", "interactive-2", "bulk-1", "bulk-2"), consumed);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    void fullLane_RejectsWithoutAffectingOthers() {
+        IngestionQueue<String> queue = new IngestionQueue<>(new int[]{1, 1}, consumed::add, scheduler);
+
+        assertTrue(queue.offer("bulk-1", 1));
+        assertFalse(queue.offer("bulk-2", 1));
+        assertTrue(queue.offer("interactive-1", 0));
+
+        assertEquals(1, queue.size(0));
+        assertEquals(1, queue.size(1));
+        assertEquals(2, queue.capacity());
+    }
+}
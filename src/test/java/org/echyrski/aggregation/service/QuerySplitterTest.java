@@ -0,0 +1,33 @@
+package org.echyrski.aggregation.service;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QuerySplitterTest {
+
+    @Test
+    void split_KeepsEveryCallWithinBudget() {
+        // "NL%2CUK" takes 7 bytes, another key would take 12
+        assertEquals(List.of(List.of("NL", "UK"), List.of("US", "DE"), List.of("FR")),
+                QuerySplitter.split(List.of("NL", "UK", "US", "DE", "FR"), 10));
+        assertEquals(List.of(List.of("NL", "UK", "US", "DE", "FR")),
+                QuerySplitter.split(List.of("NL", "UK", "US", "DE", "FR"), 2048));
+        assertEquals(List.of(), QuerySplitter.split(List.of(), 10));
+    }
+
+    @Test
+    void split_SendsOversizedKeyAlone() {
+        assertEquals(List.of(List.of("NL"), List.of("109347263"), List.of("UK")),
+                QuerySplitter.split(List.of("NL", "109347263", "UK"), 5));
+    }
+
+    @Test
+    void encodedLength_CountsPercentEncodedBytes() {
+        assertEquals(9, QuerySplitter.encodedLength("109347263"));
+        assertEquals(7, QuerySplitter.encodedLength("a b~c"));
+        assertEquals(7, QuerySplitter.encodedLength("Aé"));
+    }
+}